@@ -18,8 +18,10 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.crypto.Cipher;
@@ -35,6 +37,7 @@ import org.apache.commons.codec.binary.Base64;
 import com.google.common.base.Objects;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
 import com.google.u2f.gaedemo.storage.SecretKeys;
 import com.google.u2f.gaedemo.storage.TokenStorageData;
 import com.google.u2f.gaedemo.storage.UserTokens;
@@ -42,6 +45,7 @@ import com.google.u2f.server.DataStore;
 import com.google.u2f.server.data.EnrollSessionData;
 import com.google.u2f.server.data.SecurityKeyData;
 import com.google.u2f.server.data.SignSessionData;
+import com.googlecode.objectify.Work;
 
 public class DataStoreImpl implements DataStore {
 
@@ -116,6 +120,28 @@ public class DataStoreImpl implements DataStore {
     return (SignSessionData) getEnrollSessionData(sessionId);
   }
 
+  /**
+   * Same as {@link #getEnrollSessionData(String)}: the session is sealed into its session id rather
+   * than stored, so there is nothing to remove, and a replayed session id can't be told from the
+   * original without keeping server-side state. Replays are still caught by the counter check.
+   */
+  @Override
+  public EnrollSessionData takeSessionData(String sessionId) {
+    return getEnrollSessionData(sessionId);
+  }
+
+  @Override
+  public Map<String, SignSessionData> takeSignSessionData(Collection<String> sessionIds) {
+    Map<String, SignSessionData> result = Maps.newHashMap();
+    for (String sessionId : sessionIds) {
+      EnrollSessionData sessionData = takeSessionData(sessionId);
+      if (sessionData instanceof SignSessionData) {
+        result.put(sessionId, (SignSessionData) sessionData);
+      }
+    }
+    return result;
+  }
+
   @Override
   public void addSecurityKeyData(String accountName,
       SecurityKeyData securityKeyData) {
@@ -135,6 +161,35 @@ public class DataStoreImpl implements DataStore {
     return result.build();
   }
 
+  @Override
+  public Map<String, List<SecurityKeyData>> getSecurityKeyData(Collection<String> accountNames) {
+    Map<String, UserTokens> userTokens = ofy().load().type(UserTokens.class).ids(accountNames);
+    Map<String, List<SecurityKeyData>> result = Maps.newHashMap();
+    for (String accountName : accountNames) {
+      ImmutableList.Builder<SecurityKeyData> securityKeyData = ImmutableList.builder();
+      UserTokens tokens = userTokens.get(accountName);
+      if (tokens != null) {
+        for (TokenStorageData tokenStorageData : tokens.getTokens()) {
+          securityKeyData.add(tokenStorageData.getSecurityKeyData());
+        }
+      }
+      result.put(accountName, securityKeyData.build());
+    }
+    return result;
+  }
+
+  @Override
+  public SecurityKeyData getSecurityKeyData(String accountName, byte[] keyHandle) {
+    // all of an account's tokens live in one entity, so this is still a single load
+    for (TokenStorageData tokenStorageData : getAllTokens(accountName)) {
+      SecurityKeyData securityKeyData = tokenStorageData.getSecurityKeyData();
+      if (Arrays.equals(securityKeyData.getKeyHandle(), keyHandle)) {
+        return securityKeyData;
+      }
+    }
+    return null;
+  }
+
   @Override
   public void removeSecuityKey(String accountName, byte[] publicKey) {
     UserTokens tokens = getUserTokens(accountName);
@@ -159,4 +214,25 @@ public class DataStoreImpl implements DataStore {
     tokens.updateCounter(publicKey, newCounterValue);
     ofy().save().entity(tokens).now();
   }
+
+  /**
+   * A conditional write: the read, the comparison and the save run in one datastore transaction,
+   * which fails and is retried by Objectify if the account's tokens changed in the meantime.
+   */
+  @Override
+  public boolean compareAndSetCounter(final String accountName, final byte[] keyHandle,
+      final int expectedCounterValue, final int newCounterValue) {
+    return ofy().transact(new Work<Boolean>() {
+      @Override
+      public Boolean run() {
+        UserTokens tokens = ofy().load().type(UserTokens.class).id(accountName).now();
+        if (tokens == null
+            || !tokens.compareAndSetCounter(keyHandle, expectedCounterValue, newCounterValue)) {
+          return false;
+        }
+        ofy().save().entity(tokens).now();
+        return true;
+      }
+    });
+  }
 }
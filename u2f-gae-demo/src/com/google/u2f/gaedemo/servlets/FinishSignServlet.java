@@ -63,7 +63,8 @@ public class FinishSignServlet extends HttpServlet {
         req.getParameter("signatureData"),
         Base64.encodeBase64URLSafeString(sessionData.getChallenge()),
         req.getParameter("sessionId"),
-        sessionData.getAppId());
+        sessionData.getAppId(),
+        req.getParameter("keyHandle"));
     
     SecurityKeyData securityKeyData;
     try {
@@ -12,6 +12,7 @@ import java.util.List;
 
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.u2f.server.data.SecurityKeyData;
 import com.googlecode.objectify.annotation.Entity;
 import com.googlecode.objectify.annotation.Id;
 
@@ -49,6 +50,25 @@ public class UserTokens {
     }    
   }
 
+  /**
+   * Sets the counter of the token with the given key handle to {@code newCounterValue}, if it is
+   * {@code expectedCounterValue}. Returns whether it did.
+   */
+  public boolean compareAndSetCounter(byte[] keyHandle, int expectedCounterValue,
+      int newCounterValue) {
+    for (TokenStorageData token : tokens) {
+      SecurityKeyData securityKeyData = token.getSecurityKeyData();
+      if (Arrays.equals(securityKeyData.getKeyHandle(), keyHandle)) {
+        if (securityKeyData.getCounter() != expectedCounterValue) {
+          return false;
+        }
+        token.updateCounter(newCounterValue);
+        return true;
+      }
+    }
+    return false;
+  }
+
   public void addToken(TokenStorageData token) {
     tokens.add(token);
   }
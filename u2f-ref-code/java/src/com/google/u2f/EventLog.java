@@ -0,0 +1,110 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Level-gated logging for the hot paths of the reference implementations, on top of
+ * java.util.logging.
+ *
+ * <p>Nothing is formatted unless a record is actually written: arguments are passed to the
+ * {@link java.util.logging.LogRecord} as parameters and only turned into strings by the handler's
+ * formatter, and byte arrays wrapped with {@link #hex} are only hex-encoded at that point.
+ *
+ * <ul>
+ *   <li>{@link #event} writes one structured "name key=value ..." line per operation at
+ *   {@link Level#FINE}.
+ *   <li>{@link #trace} writes the detailed dumps of inputs, outputs and signed bytes at
+ *   {@link Level#FINEST}. Set the logger to FINEST to get them back ("debug trace" mode).
+ * </ul>
+ */
+public final class EventLog {
+  private static final Level EVENT_LEVEL = Level.FINE;
+  private static final Level TRACE_LEVEL = Level.FINEST;
+
+  private final Logger logger;
+
+  private EventLog(Logger logger) {
+    this.logger = logger;
+  }
+
+  public static EventLog getLog(Class<?> clazz) {
+    return new EventLog(Logger.getLogger(clazz.getName()));
+  }
+
+  public boolean isEventEnabled() {
+    return logger.isLoggable(EVENT_LEVEL);
+  }
+
+  public boolean isTraceEnabled() {
+    return logger.isLoggable(TRACE_LEVEL);
+  }
+
+  public void event(String name) {
+    if (isEventEnabled()) {
+      logger.log(EVENT_LEVEL, "{0}", name);
+    }
+  }
+
+  public void event(String name, String key, Object value) {
+    if (isEventEnabled()) {
+      logger.log(EVENT_LEVEL, "{0} {1}={2}", new Object[] {name, key, param(value)});
+    }
+  }
+
+  public void event(String name, String key1, Object value1, String key2, Object value2) {
+    if (isEventEnabled()) {
+      logger.log(EVENT_LEVEL, "{0} {1}={2} {3}={4}",
+          new Object[] {name, key1, param(value1), key2, param(value2)});
+    }
+  }
+
+  public void trace(String message) {
+    if (isTraceEnabled()) {
+      logger.log(TRACE_LEVEL, "{0}", message);
+    }
+  }
+
+  /** Traces {@code label} immediately followed by {@code value}, e.g. "  keyHandle: 0a1b...". */
+  public void trace(String label, Object value) {
+    if (isTraceEnabled()) {
+      logger.log(TRACE_LEVEL, "{0}{1}", new Object[] {label, param(value)});
+    }
+  }
+
+  public void warning(String message) {
+    logger.warning(message);
+  }
+
+  // MessageFormat would render numbers with grouping separators ("1,024"), so they're passed on
+  // as plain strings.
+  private static Object param(Object value) {
+    return (value instanceof Number) ? value.toString() : value;
+  }
+
+  /** Wraps {@code bytes} so that they're hex-encoded only if the record gets formatted. */
+  public static Object hex(byte[] bytes) {
+    return new LazyHex(bytes);
+  }
+
+  private static final class LazyHex {
+    private final byte[] bytes;
+
+    LazyHex(byte[] bytes) {
+      this.bytes = bytes;
+    }
+
+    @Override
+    public String toString() {
+      return Hex.encodeHexString(bytes);
+    }
+  }
+}
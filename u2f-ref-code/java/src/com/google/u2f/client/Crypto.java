@@ -6,8 +6,15 @@
 
 package com.google.u2f.client;
 
+import java.nio.ByteBuffer;
+
 import com.google.u2f.U2FException;
 
 public interface Crypto {
   byte[] computeSha256(String message) throws U2FException;
+
+  byte[] computeSha256(byte[] bytes, int offset, int length) throws U2FException;
+
+  /** Hashes {@code bytes} from its position to its limit, without changing its position. */
+  byte[] computeSha256(ByteBuffer bytes) throws U2FException;
 }
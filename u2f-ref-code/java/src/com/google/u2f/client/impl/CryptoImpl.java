@@ -6,6 +6,7 @@
 
 package com.google.u2f.client.impl;
 
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -16,8 +17,27 @@ public class CryptoImpl implements Crypto {
 
   @Override
   public byte[] computeSha256(String message) throws U2FException {
+    byte[] bytes = message.getBytes();
+    return computeSha256(bytes, 0, bytes.length);
+  }
+
+  @Override
+  public byte[] computeSha256(byte[] bytes, int offset, int length) throws U2FException {
+    MessageDigest digest = newSha256();
+    digest.update(bytes, offset, length);
+    return digest.digest();
+  }
+
+  @Override
+  public byte[] computeSha256(ByteBuffer bytes) throws U2FException {
+    MessageDigest digest = newSha256();
+    digest.update(bytes.duplicate());
+    return digest.digest();
+  }
+
+  private static MessageDigest newSha256() throws U2FException {
     try {
-      return MessageDigest.getInstance("SHA-256").digest(message.getBytes());
+      return MessageDigest.getInstance("SHA-256");
     } catch (NoSuchAlgorithmException e) {
       throw new U2FException("Cannot compute SHA-256", e);
     }
@@ -65,15 +65,16 @@ public class U2FClientReferenceImpl implements U2FClient {
     String clientData = ClientDataCodec.encodeClientData(ClientDataCodec.REQUEST_TYPE_REGISTER,
         serverChallengeBase64, origin, channelIdJson);
 
+    byte[] clientDataBytes = clientData.getBytes();
     byte[] appIdSha256 = crypto.computeSha256(appId);
-    byte[] clientDataSha256 = crypto.computeSha256(clientData);
+    byte[] clientDataSha256 = crypto.computeSha256(clientDataBytes, 0, clientDataBytes.length);
 
     RegisterResponse registerResponse = key.register(new RegisterRequest(appIdSha256,
         clientDataSha256));
 
     byte[] rawRegisterResponse = RawMessageCodec.encodeRegisterResponse(registerResponse);
     String rawRegisterResponseBase64 = Base64.encodeBase64URLSafeString(rawRegisterResponse);
-    String clientDataBase64 = Base64.encodeBase64URLSafeString(clientData.getBytes());
+    String clientDataBase64 = Base64.encodeBase64URLSafeString(clientDataBytes);
 
     server.processRegistrationResponse(new RegistrationResponse(rawRegisterResponseBase64,
         clientDataBase64, sessionId), System.currentTimeMillis());
@@ -102,7 +103,8 @@ public class U2FClientReferenceImpl implements U2FClient {
     String clientData = ClientDataCodec.encodeClientData(ClientDataCodec.REQUEST_TYPE_AUTHENTICATE,
         serverChallengeBase64, origin, channelIdJson);
 
-    byte[] clientDataSha256 = crypto.computeSha256(clientData);
+    byte[] clientDataBytes = clientData.getBytes();
+    byte[] clientDataSha256 = crypto.computeSha256(clientDataBytes, 0, clientDataBytes.length);
     byte[] appIdSha256 = crypto.computeSha256(appId);
     byte[] keyHandle = Base64.decodeBase64(keyHandleBase64);
 
@@ -111,7 +113,7 @@ public class U2FClientReferenceImpl implements U2FClient {
 
     byte[] rawAuthenticateResponse = RawMessageCodec.encodeAuthenticateResponse(authenticateResponse);
     String rawAuthenticateResponse64 = Base64.encodeBase64URLSafeString(rawAuthenticateResponse);
-    String clientDataBase64 = Base64.encodeBase64URLSafeString(clientData.getBytes());
+    String clientDataBase64 = Base64.encodeBase64URLSafeString(clientDataBytes);
 
     server.processSignResponse(new SignResponse(clientDataBase64, rawAuthenticateResponse64,
         serverChallengeBase64, sessionId, appId));
@@ -27,6 +27,10 @@ import com.google.u2f.key.messages.RegisterResponse;
 public class RawMessageCodec {
   public static final byte REGISTRATION_RESERVED_BYTE_VALUE = (byte) 0x05;
   public static final byte REGISTRATION_SIGNED_RESERVED_BYTE_VALUE = (byte) 0x00;
+  /** The signature of an authenticate response follows the user presence byte and counter. */
+  public static final int AUTHENTICATE_RESPONSE_SIGNATURE_OFFSET = 1 + 4;
+  /** Length of an uncompressed P-256 point. */
+  private static final int USER_PUBLIC_KEY_LENGTH = 65;
 
   public static byte[] encodeRegisterRequest(RegisterRequest registerRequest) {
     byte[] appIdSha256 = registerRequest.getApplicationSha256();
@@ -88,15 +92,31 @@ public class RawMessageCodec {
   }
 
   public static RegisterResponse decodeRegisterResponse(byte[] data) throws U2FException {
+    return decodeRegisterResponse(data, null);
+  }
+
+  /**
+   * Like {@link #decodeRegisterResponse(byte[])}, but doesn't parse the attestation certificate
+   * if it's given: the caller has to have checked that it's the one encoded in {@code data}, e.g.
+   * by its fingerprint (see {@link #getAttestationCertificateOffset}).
+   */
+  public static RegisterResponse decodeRegisterResponse(byte[] data,
+      X509Certificate attestationCertificate) throws U2FException {
     try {
       DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(data));
       byte reservedByte = inputStream.readByte();
-      byte[] userPublicKey = new byte[65];
+      byte[] userPublicKey = new byte[USER_PUBLIC_KEY_LENGTH];
       inputStream.readFully(userPublicKey);
       byte[] keyHandle = new byte[inputStream.readUnsignedByte()];
       inputStream.readFully(keyHandle);
-      X509Certificate attestationCertificate = (X509Certificate) CertificateFactory.getInstance(
-          "X.509").generateCertificate(inputStream);
+      int certificateOffset = data.length - inputStream.available();
+      int certificateLength = getDerLength(data, certificateOffset);
+      if (attestationCertificate == null) {
+        attestationCertificate = (X509Certificate) CertificateFactory.getInstance("X.509")
+            .generateCertificate(new ByteArrayInputStream(data, certificateOffset,
+                certificateLength));
+      }
+      inputStream.skipBytes(certificateLength);
       byte[] signature = new byte[inputStream.available()];
       inputStream.readFully(signature);
 
@@ -118,6 +138,48 @@ public class RawMessageCodec {
     }
   }
 
+  /**
+   * Returns where the attestation certificate starts in a raw registration response. Together
+   * with {@link #getDerLength}, this locates the certificate's DER without parsing it.
+   */
+  public static int getAttestationCertificateOffset(byte[] data) throws U2FException {
+    int keyHandleLengthOffset = 1 + USER_PUBLIC_KEY_LENGTH;
+    if (data.length <= keyHandleLengthOffset) {
+      throw new U2FException("Error when parsing raw RegistrationResponse");
+    }
+    return keyHandleLengthOffset + 1 + (data[keyHandleLengthOffset] & 0xff);
+  }
+
+  /**
+   * Returns the length, header included, of the DER element starting at {@code offset}. Only
+   * definite lengths of up to 4 bytes are accepted, which covers any certificate.
+   */
+  public static int getDerLength(byte[] data, int offset) throws U2FException {
+    if (offset < 0 || data.length - offset < 2) {
+      throw new U2FException("Truncated DER element");
+    }
+    int headerLength = 2;
+    long contentLength = data[offset + 1] & 0xff;
+    if (contentLength >= 0x80) {
+      int lengthBytes = (int) contentLength & 0x7f;
+      if (lengthBytes == 0 || lengthBytes > 4) {
+        throw new U2FException("Unsupported DER length encoding");
+      }
+      if (data.length - offset < 2 + lengthBytes) {
+        throw new U2FException("Truncated DER element");
+      }
+      contentLength = 0;
+      for (int i = 0; i < lengthBytes; i++) {
+        contentLength = (contentLength << 8) | (data[offset + 2 + i] & 0xff);
+      }
+      headerLength += lengthBytes;
+    }
+    if (headerLength + contentLength > data.length - offset) {
+      throw new U2FException("Truncated DER element");
+    }
+    return (int) (headerLength + contentLength);
+  }
+
   public static byte[] encodeAuthenticateRequest(AuthenticateRequest authenticateRequest)
       throws U2FException {
     byte controlByte = authenticateRequest.getControl();
@@ -6,10 +6,17 @@
 
 package com.google.u2f.key;
 
+import java.nio.ByteBuffer;
 import java.security.PrivateKey;
 
 import com.google.u2f.U2FException;
 
 public interface Crypto {
   byte[] sign(byte[] signedData, PrivateKey certificatePrivateKey) throws U2FException;
+
+  byte[] sign(byte[] signedData, int offset, int length, PrivateKey certificatePrivateKey)
+      throws U2FException;
+
+  /** Signs {@code signedData} from its position to its limit, without changing its position. */
+  byte[] sign(ByteBuffer signedData, PrivateKey certificatePrivateKey) throws U2FException;
 }
@@ -11,7 +11,11 @@ import java.security.KeyPair;
 public interface DataStore {
   void storeKeyPair(byte[] keyHandle, KeyPair keyPair);
 
-  KeyPair getKeyPair(byte[] keyHandle);
+  /**
+   * Returns the key pair of {@code keyHandle}, or null if the key handle wasn't issued by this
+   * token for the application {@code applicationSha256}.
+   */
+  KeyPair getKeyPair(byte[] applicationSha256, byte[] keyHandle);
 
   int incrementCounter();
 }
@@ -6,6 +6,7 @@
 
 package com.google.u2f.key.impl;
 
+import java.nio.ByteBuffer;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
@@ -26,15 +27,39 @@ public class BouncyCastleCrypto implements Crypto {
 
   @Override
   public byte[] sign(byte[] signedData, PrivateKey privateKey) throws U2FException {
+    return sign(signedData, 0, signedData.length, privateKey);
+  }
+
+  @Override
+  public byte[] sign(byte[] signedData, int offset, int length, PrivateKey privateKey)
+      throws U2FException {
     try {
-      Signature signature = Signature.getInstance("SHA256withECDSA");
-      signature.initSign(privateKey);
-      signature.update(signedData);
+      Signature signature = newSignature(privateKey);
+      signature.update(signedData, offset, length);
       return signature.sign();
-    } catch (NoSuchAlgorithmException e) {
+    } catch (SignatureException e) {
       throw new U2FException("Error when signing", e);
+    }
+  }
+
+  @Override
+  public byte[] sign(ByteBuffer signedData, PrivateKey privateKey) throws U2FException {
+    try {
+      Signature signature = newSignature(privateKey);
+      signature.update(signedData.duplicate());
+      return signature.sign();
     } catch (SignatureException e) {
       throw new U2FException("Error when signing", e);
+    }
+  }
+
+  private static Signature newSignature(PrivateKey privateKey) throws U2FException {
+    try {
+      Signature signature = Signature.getInstance("SHA256withECDSA");
+      signature.initSign(privateKey);
+      return signature;
+    } catch (NoSuchAlgorithmException e) {
+      throw new U2FException("Error when signing", e);
     } catch (InvalidKeyException e) {
       throw new U2FException("Error when signing", e);
     }
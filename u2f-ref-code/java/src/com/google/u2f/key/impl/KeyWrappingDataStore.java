@@ -0,0 +1,193 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.key.impl;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.jcajce.provider.asymmetric.ec.BCECPrivateKey;
+import org.bouncycastle.jcajce.provider.asymmetric.ec.BCECPublicKey;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.jce.spec.ECParameterSpec;
+import org.bouncycastle.jce.spec.ECPrivateKeySpec;
+import org.bouncycastle.jce.spec.ECPublicKeySpec;
+import org.bouncycastle.math.ec.ECFieldElement;
+import org.bouncycastle.math.ec.ECPoint;
+
+import com.google.u2f.key.DataStore;
+import com.google.u2f.key.KeyHandleGenerator;
+
+/**
+ * Stateless {@link KeyHandleGenerator} and {@link DataStore} pair for simulated tokens: the key
+ * pair is stored in the key handle itself, so memory doesn't grow with the number of
+ * registrations.
+ *
+ * <p>A key handle is {@code nonce | AES-GCM(masterKey, nonce, d | Q)}, with the application
+ * parameter as associated data. Only this token can unwrap it, and only for the application it
+ * was registered for; the GCM tag is checked in constant time. Only P-256 key pairs can be
+ * wrapped.
+ */
+public class KeyWrappingDataStore implements KeyHandleGenerator, DataStore {
+  private static final X9ECParameters P256 = SECNamedCurves.getByName("secp256r1");
+  private static final ECParameterSpec P256_SPEC =
+      new ECParameterSpec(P256.getCurve(), P256.getG(), P256.getN(), P256.getH());
+
+  private static final int NONCE_LENGTH = 12;
+  private static final int TAG_BITS = 128;
+  private static final int PRIVATE_KEY_LENGTH = 32;
+  private static final int PUBLIC_KEY_LENGTH = 65;
+  static final int KEY_HANDLE_LENGTH =
+      NONCE_LENGTH + PRIVATE_KEY_LENGTH + PUBLIC_KEY_LENGTH + TAG_BITS / 8;
+
+  private final KeyParameter masterKey;
+  private final SecureRandom random;
+  private final AtomicInteger counter = new AtomicInteger();
+
+  /**
+   * @param masterKey the device's 128, 192 or 256 bit AES key
+   */
+  public KeyWrappingDataStore(byte[] masterKey, SecureRandom random) {
+    this.masterKey = new KeyParameter(masterKey.clone());
+    this.random = random;
+  }
+
+  /**
+   * @throws IllegalArgumentException if {@code keyPair} isn't a P-256 key pair
+   */
+  @Override
+  public byte[] generateKeyHandle(byte[] applicationSha256, KeyPair keyPair) {
+    byte[] plaintext = new byte[PRIVATE_KEY_LENGTH + PUBLIC_KEY_LENGTH];
+    try {
+      toUnsigned(((ECPrivateKey) keyPair.getPrivate()).getS(), plaintext, 0);
+      ECPublicKey publicKey = (ECPublicKey) keyPair.getPublic();
+      plaintext[PRIVATE_KEY_LENGTH] = 0x04;
+      toUnsigned(publicKey.getW().getAffineX(), plaintext, PRIVATE_KEY_LENGTH + 1);
+      toUnsigned(publicKey.getW().getAffineY(), plaintext, PRIVATE_KEY_LENGTH + 33);
+      return wrap(applicationSha256, plaintext);
+    } finally {
+      Arrays.fill(plaintext, (byte) 0);
+    }
+  }
+
+  /** Seals {@code d | Q} into a key handle for the given application. */
+  byte[] wrap(byte[] applicationSha256, byte[] plaintext) {
+    byte[] keyHandle = new byte[KEY_HANDLE_LENGTH];
+    byte[] nonce = new byte[NONCE_LENGTH];
+    random.nextBytes(nonce);
+    System.arraycopy(nonce, 0, keyHandle, 0, NONCE_LENGTH);
+
+    GCMBlockCipher cipher = newCipher(true, nonce, applicationSha256);
+    int length = cipher.processBytes(plaintext, 0, plaintext.length, keyHandle, NONCE_LENGTH);
+    try {
+      cipher.doFinal(keyHandle, NONCE_LENGTH + length);
+    } catch (InvalidCipherTextException e) {
+      // only thrown when decrypting
+      throw new IllegalStateException(e);
+    }
+    return keyHandle;
+  }
+
+  /** Nothing to do: the key pair is already in the key handle. */
+  @Override
+  public void storeKeyPair(byte[] keyHandle, KeyPair keyPair) {}
+
+  @Override
+  public KeyPair getKeyPair(byte[] applicationSha256, byte[] keyHandle) {
+    if (keyHandle.length != KEY_HANDLE_LENGTH) {
+      return null;
+    }
+    GCMBlockCipher cipher =
+        newCipher(false, Arrays.copyOf(keyHandle, NONCE_LENGTH), applicationSha256);
+    byte[] plaintext = new byte[PRIVATE_KEY_LENGTH + PUBLIC_KEY_LENGTH];
+    int length = cipher.processBytes(keyHandle, NONCE_LENGTH, KEY_HANDLE_LENGTH - NONCE_LENGTH,
+        plaintext, 0);
+    try {
+      cipher.doFinal(plaintext, length);
+    } catch (InvalidCipherTextException e) {
+      // another token's key handle, another application's, or a corrupted one
+      return null;
+    }
+
+    ECPoint q;
+    BigInteger d;
+    try {
+      q = P256.getCurve().decodePoint(
+          Arrays.copyOfRange(plaintext, PRIVATE_KEY_LENGTH, plaintext.length));
+      d = new BigInteger(1, Arrays.copyOf(plaintext, PRIVATE_KEY_LENGTH));
+    } catch (IllegalArgumentException e) {
+      // not a point encoding, or coordinates outside the field
+      return null;
+    } finally {
+      Arrays.fill(plaintext, (byte) 0);
+    }
+    // the tag only shows that a holder of the master key wrapped the key pair, so check the key
+    // pair itself before signing with it
+    if (d.signum() <= 0 || d.compareTo(P256.getN()) >= 0 || !isOnCurve(q)) {
+      return null;
+    }
+    return new KeyPair(
+        new BCECPublicKey("EC", new ECPublicKeySpec(q, P256_SPEC),
+            BouncyCastleProvider.CONFIGURATION),
+        new BCECPrivateKey("EC", new ECPrivateKeySpec(d, P256_SPEC),
+            BouncyCastleProvider.CONFIGURATION));
+  }
+
+  @Override
+  public int incrementCounter() {
+    return counter.incrementAndGet();
+  }
+
+  private GCMBlockCipher newCipher(boolean forEncryption, byte[] nonce,
+      byte[] applicationSha256) {
+    GCMBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+    cipher.init(forEncryption, new AEADParameters(masterKey, TAG_BITS, nonce, applicationSha256));
+    return cipher;
+  }
+
+  /**
+   * Whether {@code q} is a finite point on P-256. The cofactor is 1, so that also puts it in the
+   * group generated by G.
+   */
+  private static boolean isOnCurve(ECPoint q) {
+    if (q.isInfinity()) {
+      return false;
+    }
+    ECPoint point = q.normalize();
+    ECFieldElement x = point.getAffineXCoord();
+    ECFieldElement y = point.getAffineYCoord();
+    ECFieldElement rhs =
+        x.square().add(P256.getCurve().getA()).multiply(x).add(P256.getCurve().getB());
+    return y.square().toBigInteger().equals(rhs.toBigInteger());
+  }
+
+  /**
+   * Writes {@code value} as a 32 byte unsigned big-endian number at {@code offset}.
+   *
+   * @throws IllegalArgumentException if {@code value} is negative or doesn't fit in 32 bytes
+   */
+  private static void toUnsigned(BigInteger value, byte[] out, int offset) {
+    if (value.signum() < 0 || value.bitLength() > 256) {
+      throw new IllegalArgumentException("Not a P-256 key: value longer than 32 bytes");
+    }
+    byte[] bytes = value.toByteArray();
+    // toByteArray() adds a zero sign byte when the top bit is set
+    int length = Math.min(bytes.length, 32);
+    System.arraycopy(bytes, bytes.length - length, out, offset + 32 - length, length);
+  }
+}
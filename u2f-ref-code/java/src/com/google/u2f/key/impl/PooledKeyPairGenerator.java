@@ -0,0 +1,119 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.key.impl;
+
+import java.security.KeyPair;
+import java.security.PublicKey;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.u2f.EventLog;
+import com.google.u2f.key.KeyPairGenerator;
+
+/**
+ * {@link KeyPairGenerator} that hands out key pairs generated ahead of time, so that a burst of
+ * registrations doesn't wait for key generation.
+ *
+ * <p>The pool holds up to {@code capacity} key pairs. Whenever it drops to {@code lowWaterMark}
+ * or below, a refill task is submitted to the refill executor, which generates key pairs until
+ * the pool is full again. If the pool is empty, the key pair is generated inline (a miss).
+ *
+ * <p>Pooled key pairs are generated before the request they're used for, so this only fits
+ * delegates whose key pairs don't depend on the application and challenge, like a real token's.
+ */
+public class PooledKeyPairGenerator implements KeyPairGenerator {
+  private static final EventLog Log = EventLog.getLog(PooledKeyPairGenerator.class);
+  private static final byte[] NO_INPUT = new byte[0];
+
+  private final KeyPairGenerator delegate;
+  private final int lowWaterMark;
+  private final Executor refillExecutor;
+  private final BlockingQueue<KeyPair> pool;
+  private final AtomicBoolean refilling = new AtomicBoolean();
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  private final Runnable refill = new Runnable() {
+    @Override
+    public void run() {
+      try {
+        while (pool.remainingCapacity() > 0) {
+          pool.offer(delegate.generateKeyPair(NO_INPUT, NO_INPUT));
+        }
+      } finally {
+        refilling.set(false);
+      }
+      // the pool may have been drained again while this task was finishing
+      maybeRefill();
+    }
+  };
+
+  /**
+   * @param capacity maximum number of key pairs kept ready
+   * @param lowWaterMark pool depth at which a refill starts
+   * @param refillExecutor runs the refills, e.g. a single daemon thread
+   */
+  public PooledKeyPairGenerator(KeyPairGenerator delegate, int capacity, int lowWaterMark,
+      Executor refillExecutor) {
+    if (lowWaterMark < 0 || lowWaterMark >= capacity) {
+      throw new IllegalArgumentException("lowWaterMark must be in [0, capacity)");
+    }
+    this.delegate = delegate;
+    this.lowWaterMark = lowWaterMark;
+    this.refillExecutor = refillExecutor;
+    this.pool = new ArrayBlockingQueue<KeyPair>(capacity);
+    maybeRefill();
+  }
+
+  @Override
+  public KeyPair generateKeyPair(byte[] applicationSha256, byte[] challengeSha256) {
+    KeyPair keyPair = pool.poll();
+    maybeRefill();
+    if (keyPair != null) {
+      hits.incrementAndGet();
+      return keyPair;
+    }
+    misses.incrementAndGet();
+    Log.event("keyPairPoolMiss", "misses", misses.get());
+    return delegate.generateKeyPair(applicationSha256, challengeSha256);
+  }
+
+  @Override
+  public byte[] encodePublicKey(PublicKey publicKey) {
+    return delegate.encodePublicKey(publicKey);
+  }
+
+  /** Number of key pairs ready to be handed out. */
+  public int getPoolDepth() {
+    return pool.size();
+  }
+
+  /** Number of key pairs that were taken from the pool. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** Number of key pairs that had to be generated inline because the pool was empty. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private void maybeRefill() {
+    if (pool.size() <= lowWaterMark && refilling.compareAndSet(false, true)) {
+      try {
+        refillExecutor.execute(refill);
+      } catch (RejectedExecutionException e) {
+        refilling.set(false);
+        Log.warning("Key pair pool refill rejected: " + e.getMessage());
+      }
+    }
+  }
+}
@@ -0,0 +1,202 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.key.impl;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.interfaces.ECPrivateKey;
+import java.security.spec.ECParameterSpec;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.math.ec.ECPoint;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.u2f.U2FException;
+import com.google.u2f.key.Crypto;
+
+/**
+ * {@link Crypto} for simulated tokens under load: it signs with P-256 nonces that were prepared
+ * ahead of time.
+ *
+ * <p>The expensive part of an ECDSA signature, {@code r = (k*G).x mod n}, doesn't depend on the
+ * message. Background threads compute {@code (k^-1, r)} pairs into a bounded pool, and
+ * {@link #sign} only takes one out and computes {@code s = k^-1 * (e + d*r) mod n}. Each pair is
+ * removed from the pool when it's taken, so a nonce is never used twice.
+ *
+ * <p>When the pool is empty, and for keys that aren't on P-256, signing falls back to the
+ * delegate.
+ */
+public class PrecomputedNonceCrypto implements Crypto {
+  private static final X9ECParameters P256 = SECNamedCurves.getByName("secp256r1");
+  private static final BigInteger N = P256.getN();
+
+  private final Crypto delegate;
+  private final SecureRandom random;
+  private final BlockingQueue<Nonce> pool;
+  private final ExecutorService precomputeExecutor;
+  private final AtomicLong precomputedSignatures = new AtomicLong();
+  private final AtomicLong fallbackSignatures = new AtomicLong();
+
+  /**
+   * @param poolCapacity number of nonces to keep ready
+   * @param threads number of background threads refilling the pool; with none, the pool is
+   *     only filled by {@link #precompute}
+   */
+  public PrecomputedNonceCrypto(Crypto delegate, SecureRandom random, int poolCapacity,
+      int threads) {
+    this.delegate = delegate;
+    this.random = random;
+    this.pool = new ArrayBlockingQueue<Nonce>(poolCapacity);
+    if (threads > 0) {
+      precomputeExecutor = Executors.newFixedThreadPool(threads, new ThreadFactoryBuilder()
+          .setNameFormat("nonce-precompute-%d").setDaemon(true).build());
+      for (int i = 0; i < threads; i++) {
+        precomputeExecutor.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              while (!Thread.currentThread().isInterrupted()) {
+                // blocks while the pool is full
+                pool.put(newNonce());
+              }
+            } catch (InterruptedException e) {
+              // shut down
+            }
+          }
+        });
+      }
+    } else {
+      precomputeExecutor = null;
+    }
+  }
+
+  /** Stops the background threads. Nonces already in the pool can still be used. */
+  public void shutdown() {
+    if (precomputeExecutor != null) {
+      precomputeExecutor.shutdownNow();
+    }
+  }
+
+  /** Adds one nonce to the pool, unless it's full. Returns whether it was added. */
+  public boolean precompute() {
+    return pool.offer(newNonce());
+  }
+
+  /** Number of nonces ready to be used. */
+  public int getAvailableNonces() {
+    return pool.size();
+  }
+
+  /** Number of signatures made with a precomputed nonce. */
+  public long getPrecomputedSignatures() {
+    return precomputedSignatures.get();
+  }
+
+  /** Number of signatures that had to go through the delegate. */
+  public long getFallbackSignatures() {
+    return fallbackSignatures.get();
+  }
+
+  @Override
+  public byte[] sign(byte[] signedData, PrivateKey privateKey) throws U2FException {
+    return sign(signedData, 0, signedData.length, privateKey);
+  }
+
+  @Override
+  public byte[] sign(byte[] signedData, int offset, int length, PrivateKey privateKey)
+      throws U2FException {
+    return sign(ByteBuffer.wrap(signedData, offset, length), privateKey);
+  }
+
+  @Override
+  public byte[] sign(ByteBuffer signedData, PrivateKey privateKey) throws U2FException {
+    if (privateKey instanceof ECPrivateKey && isP256(((ECPrivateKey) privateKey).getParams())) {
+      Nonce nonce = pool.poll();
+      if (nonce != null) {
+        BigInteger e = new BigInteger(1, computeSha256(signedData));
+        BigInteger d = ((ECPrivateKey) privateKey).getS();
+        BigInteger s = nonce.kInverse.multiply(e.add(d.multiply(nonce.r))).mod(N);
+        // s == 0 happens with negligible probability, but isn't a valid signature
+        if (s.signum() != 0) {
+          precomputedSignatures.incrementAndGet();
+          return encodeDerSignature(nonce.r, s);
+        }
+      }
+    }
+    fallbackSignatures.incrementAndGet();
+    return delegate.sign(signedData, privateKey);
+  }
+
+  private Nonce newNonce() {
+    while (true) {
+      BigInteger k = new BigInteger(N.bitLength(), random);
+      if (k.signum() == 0 || k.compareTo(N) >= 0) {
+        continue;
+      }
+      ECPoint point = P256.getG().multiply(k).normalize();
+      BigInteger r = point.getAffineXCoord().toBigInteger().mod(N);
+      if (r.signum() != 0) {
+        return new Nonce(k.modInverse(N), r);
+      }
+    }
+  }
+
+  private static boolean isP256(ECParameterSpec params) {
+    return N.equals(params.getOrder())
+        && P256.getG().getAffineXCoord().toBigInteger()
+            .equals(params.getGenerator().getAffineX())
+        && P256.getG().getAffineYCoord().toBigInteger()
+            .equals(params.getGenerator().getAffineY());
+  }
+
+  private static byte[] computeSha256(ByteBuffer signedData) throws U2FException {
+    try {
+      MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+      sha256.update(signedData.duplicate());
+      return sha256.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new U2FException("Error when signing", e);
+    }
+  }
+
+  private static byte[] encodeDerSignature(BigInteger r, BigInteger s) throws U2FException {
+    ASN1EncodableVector vector = new ASN1EncodableVector();
+    vector.add(new ASN1Integer(r));
+    vector.add(new ASN1Integer(s));
+    try {
+      return new DERSequence(vector).getEncoded(ASN1Encoding.DER);
+    } catch (IOException e) {
+      throw new U2FException("Error when signing", e);
+    }
+  }
+
+  /** A single-use nonce k, kept as k^-1 mod n, and the r it gives. */
+  private static final class Nonce {
+    final BigInteger kInverse;
+    final BigInteger r;
+
+    Nonce(BigInteger kInverse, BigInteger r) {
+      this.kInverse = kInverse;
+      this.r = r;
+    }
+  }
+}
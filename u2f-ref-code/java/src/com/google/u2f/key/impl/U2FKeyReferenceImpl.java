@@ -9,10 +9,8 @@ package com.google.u2f.key.impl;
 import java.security.KeyPair;
 import java.security.PrivateKey;
 import java.security.cert.X509Certificate;
-import java.util.logging.Logger;
-
-import org.apache.commons.codec.binary.Hex;
 
+import com.google.u2f.EventLog;
 import com.google.u2f.U2FException;
 import com.google.u2f.codec.RawMessageCodec;
 import com.google.u2f.key.Crypto;
@@ -27,7 +25,7 @@ import com.google.u2f.key.messages.RegisterRequest;
 import com.google.u2f.key.messages.RegisterResponse;
 
 public class U2FKeyReferenceImpl implements U2FKey {
-  private static final Logger Log = Logger.getLogger(U2FKeyReferenceImpl.class.getName());
+  private static final EventLog Log = EventLog.getLog(U2FKeyReferenceImpl.class);
 
   private final X509Certificate vendorCertificate;
   private final PrivateKey certificatePrivateKey;
@@ -51,14 +49,15 @@ public class U2FKeyReferenceImpl implements U2FKey {
 
   @Override
   public RegisterResponse register(RegisterRequest registerRequest) throws U2FException {
-    Log.info(">> register");
-
     byte[] applicationSha256 = registerRequest.getApplicationSha256();
     byte[] challengeSha256 = registerRequest.getChallengeSha256();
 
-    Log.info(" -- Inputs --");
-    Log.info("  applicationSha256: " + Hex.encodeHexString(applicationSha256));
-    Log.info("  challengeSha256: " + Hex.encodeHexString(challengeSha256));
+    if (Log.isTraceEnabled()) {
+      Log.trace(">> register");
+      Log.trace(" -- Inputs --");
+      Log.trace("  applicationSha256: ", EventLog.hex(applicationSha256));
+      Log.trace("  challengeSha256: ", EventLog.hex(challengeSha256));
+    }
 
     byte userPresent = userPresenceVerifier.verifyUserPresence();
     if ((userPresent & UserPresenceVerifier.USER_PRESENT_FLAG) == 0) {
@@ -74,17 +73,19 @@ public class U2FKeyReferenceImpl implements U2FKey {
 
     byte[] signedData = RawMessageCodec.encodeRegistrationSignedBytes(applicationSha256, challengeSha256,
         keyHandle, userPublicKey);
-    Log.info("Signing bytes " + Hex.encodeHexString(signedData));
+    Log.trace("Signing bytes ", EventLog.hex(signedData));
 
     byte[] signature = crypto.sign(signedData, certificatePrivateKey);
 
-    Log.info(" -- Outputs --");
-    Log.info("  userPublicKey: " + Hex.encodeHexString(userPublicKey));
-    Log.info("  keyHandle: " + Hex.encodeHexString(keyHandle));
-    Log.info("  vendorCertificate: " + vendorCertificate);
-    Log.info("  signature: " + Hex.encodeHexString(signature));
-
-    Log.info("<< register");
+    if (Log.isTraceEnabled()) {
+      Log.trace(" -- Outputs --");
+      Log.trace("  userPublicKey: ", EventLog.hex(userPublicKey));
+      Log.trace("  keyHandle: ", EventLog.hex(keyHandle));
+      Log.trace("  vendorCertificate: ", vendorCertificate);
+      Log.trace("  signature: ", EventLog.hex(signature));
+      Log.trace("<< register");
+    }
+    Log.event("register");
 
     return new RegisterResponse(userPublicKey, keyHandle, vendorCertificate, signature);
   }
@@ -92,35 +93,41 @@ public class U2FKeyReferenceImpl implements U2FKey {
   @Override
   public AuthenticateResponse authenticate(AuthenticateRequest authenticateRequest)
       throws U2FException {
-    Log.info(">> authenticate");
-
     byte control = authenticateRequest.getControl();
     byte[] applicationSha256 = authenticateRequest.getApplicationSha256();
     byte[] challengeSha256 = authenticateRequest.getChallengeSha256();
     byte[] keyHandle = authenticateRequest.getKeyHandle();
 
-    Log.info(" -- Inputs --");
-    Log.info("  control: " + control);
-    Log.info("  applicationSha256: " + Hex.encodeHexString(applicationSha256));
-    Log.info("  challengeSha256: " + Hex.encodeHexString(challengeSha256));
-    Log.info("  keyHandle: " + Hex.encodeHexString(keyHandle));
+    if (Log.isTraceEnabled()) {
+      Log.trace(">> authenticate");
+      Log.trace(" -- Inputs --");
+      Log.trace("  control: ", control);
+      Log.trace("  applicationSha256: ", EventLog.hex(applicationSha256));
+      Log.trace("  challengeSha256: ", EventLog.hex(challengeSha256));
+      Log.trace("  keyHandle: ", EventLog.hex(keyHandle));
+    }
 
-    KeyPair keyPair = dataStore.getKeyPair(keyHandle);
+    KeyPair keyPair = dataStore.getKeyPair(applicationSha256, keyHandle);
+    if (keyPair == null) {
+      throw new U2FException("Unknown key handle");
+    }
     int counter = dataStore.incrementCounter();
     byte userPresence = userPresenceVerifier.verifyUserPresence();
     byte[] signedData = RawMessageCodec.encodeAuthenticateSignedBytes(applicationSha256, userPresence,
         counter, challengeSha256);
 
-    Log.info("Signing bytes " + Hex.encodeHexString(signedData));
+    Log.trace("Signing bytes ", EventLog.hex(signedData));
 
     byte[] signature = crypto.sign(signedData, keyPair.getPrivate());
 
-    Log.info(" -- Outputs --");
-    Log.info("  userPresence: " + userPresence);
-    Log.info("  counter: " + counter);
-    Log.info("  signature: " + Hex.encodeHexString(signature));
-
-    Log.info("<< authenticate");
+    if (Log.isTraceEnabled()) {
+      Log.trace(" -- Outputs --");
+      Log.trace("  userPresence: ", userPresence);
+      Log.trace("  counter: ", counter);
+      Log.trace("  signature: ", EventLog.hex(signature));
+      Log.trace("<< authenticate");
+    }
+    Log.event("authenticate", "counter", counter);
 
     return new AuthenticateResponse(userPresence, counter, signature);
   }
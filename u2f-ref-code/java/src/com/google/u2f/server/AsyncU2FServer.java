@@ -0,0 +1,48 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server;
+
+import java.util.List;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.messages.MultiKeySignRequest;
+import com.google.u2f.server.messages.RegistrationRequest;
+import com.google.u2f.server.messages.RegistrationResponse;
+import com.google.u2f.server.messages.SignRequest;
+import com.google.u2f.server.messages.SignResponse;
+import com.google.u2f.server.messages.SignResult;
+
+/**
+ * Non-blocking counterpart of {@link U2FServer}. Every method returns immediately; the returned
+ * future fails with a {@link com.google.u2f.U2FException} wherever the corresponding
+ * {@link U2FServer} method would have thrown one.
+ */
+public interface AsyncU2FServer {
+
+  // registration //
+  public ListenableFuture<RegistrationRequest> getRegistrationRequest(String accountName,
+      String appId);
+
+  public ListenableFuture<SecurityKeyData> processRegistrationResponse(
+      RegistrationResponse registrationResponse, long currentTimeInMillis);
+
+  // authentication //
+  public ListenableFuture<List<SignRequest>> getSignRequest(String accountName, String appId);
+
+  public ListenableFuture<MultiKeySignRequest> getMultiKeySignRequest(String accountName,
+      String appId);
+
+  public ListenableFuture<SecurityKeyData> processSignResponse(SignResponse signResponse);
+
+  public ListenableFuture<List<SignResult>> processSignResponses(List<SignResponse> signResponses);
+
+  // token management //
+  public ListenableFuture<List<SecurityKeyData>> getAllSecurityKeys(String accountName);
+
+  public ListenableFuture<Void> removeSecurityKey(String accountName, byte[] publicKey);
+}
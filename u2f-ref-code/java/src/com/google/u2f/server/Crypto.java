@@ -6,6 +6,7 @@
 
 package com.google.u2f.server;
 
+import java.nio.ByteBuffer;
 import java.security.PublicKey;
 import java.security.cert.X509Certificate;
 
@@ -18,7 +19,23 @@ public interface Crypto {
   boolean verifySignature(PublicKey publicKey, byte[] signedBytes,
       byte[] signature) throws U2FException;
 
+  /**
+   * Verifies {@code signature} over {@code signedBytes}, both taken from the buffers' current
+   * position to their limit. The buffers' positions aren't changed.
+   */
+  boolean verifySignature(X509Certificate attestationCertificate, ByteBuffer signedBytes,
+      ByteBuffer signature) throws U2FException;
+
+  /** Like {@link #verifySignature(X509Certificate, ByteBuffer, ByteBuffer)}. */
+  boolean verifySignature(PublicKey publicKey, ByteBuffer signedBytes,
+      ByteBuffer signature) throws U2FException;
+
   PublicKey decodePublicKey(byte[] encodedPublicKey) throws U2FException;
 
   byte[] computeSha256(byte[] bytes) throws U2FException;
+
+  byte[] computeSha256(byte[] bytes, int offset, int length) throws U2FException;
+
+  /** Hashes {@code bytes} from its position to its limit, without changing its position. */
+  byte[] computeSha256(ByteBuffer bytes) throws U2FException;
 }
@@ -7,7 +7,9 @@
 package com.google.u2f.server;
 
 import java.security.cert.X509Certificate;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import com.google.u2f.server.data.EnrollSessionData;
@@ -29,13 +31,39 @@ public interface DataStore {
   
   public EnrollSessionData getEnrollSessionData(String sessionId);
 
+  /**
+   * Removes the session and returns it, or returns null if it is unknown. However many callers
+   * race for a session, at most one of them gets it, so that each session is verified only once.
+   */
+  public EnrollSessionData takeSessionData(String sessionId);
+
+  /**
+   * Bulk version of {@link #takeSessionData(String)}. Unknown session ids, and those of sessions
+   * that aren't sign sessions, are left out.
+   */
+  public Map<String, SignSessionData> takeSignSessionData(Collection<String> sessionIds);
+
   
   // security key management
   public void addSecurityKeyData(String accountName, SecurityKeyData securityKeyData);
 
   public List<SecurityKeyData> getSecurityKeyData(String accountName);
+
+  /** Bulk version of {@link #getSecurityKeyData(String)}, keyed by account name. */
+  public Map<String, List<SecurityKeyData>> getSecurityKeyData(Collection<String> accountNames);
+
+  /** Returns the security key of {@code accountName} with the given key handle, or null. */
+  public SecurityKeyData getSecurityKeyData(String accountName, byte[] keyHandle);
   
   public void removeSecuityKey(String accountName, byte[] publicKey);
   
   public void updateSecurityKeyCounter(String accountName, byte[] publicKey, int newCounterValue);
+
+  /**
+   * Sets the counter of the security key of {@code accountName} with the given key handle to
+   * {@code newCounterValue}, provided it is still {@code expectedCounterValue}, as one atomic step.
+   * Returns false, and changes nothing, if the counter has moved on or there is no such key.
+   */
+  public boolean compareAndSetCounter(String accountName, byte[] keyHandle,
+      int expectedCounterValue, int newCounterValue);
 }
@@ -10,10 +10,12 @@ import java.util.List;
 
 import com.google.u2f.U2FException;
 import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.messages.MultiKeySignRequest;
 import com.google.u2f.server.messages.RegistrationRequest;
 import com.google.u2f.server.messages.RegistrationResponse;
 import com.google.u2f.server.messages.SignRequest;
 import com.google.u2f.server.messages.SignResponse;
+import com.google.u2f.server.messages.SignResult;
 
 public interface U2FServer {
 
@@ -26,7 +28,21 @@ public interface U2FServer {
   // authentication //
   public List<SignRequest> getSignRequest(String accountName, String appId) throws U2FException;
 
+  /**
+   * Returns a single challenge that any of the account's keys may sign. The matching
+   * {@link SignResponse} must carry the key handle of the key that signed.
+   */
+  public MultiKeySignRequest getMultiKeySignRequest(String accountName, String appId)
+      throws U2FException;
+
   public SecurityKeyData processSignResponse(SignResponse signResponse) throws U2FException;
+
+  /**
+   * Verifies a batch of sign responses. Each response succeeds or fails on its own, exactly as if
+   * it had been passed to {@link #processSignResponse}; the results are in the same order as
+   * {@code signResponses}.
+   */
+  public List<SignResult> processSignResponses(List<SignResponse> signResponses);
   
   // token management //
   public List<SecurityKeyData> getAllSecurityKeys(String accountName);
@@ -0,0 +1,53 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server;
+
+import com.google.u2f.U2FException;
+
+/**
+ * Thrown when a registration or sign response is rejected, recording the verification stage that
+ * rejected it.
+ */
+@SuppressWarnings("serial")
+public class VerificationException extends U2FException {
+
+  /**
+   * The verification stages, in the order the server runs them: each one is more expensive than
+   * the one before, so invalid responses are turned away as cheaply as possible.
+   */
+  public enum Stage {
+    /** Session lookup, and lookup of the key the session was issued for. */
+    SESSION,
+    /** Type, challenge and origin in the client data. */
+    CLIENT_DATA,
+    /** User presence and counter in the sign response. */
+    COUNTER,
+    /** Decoding of the registration response and its attestation certificate. */
+    CERTIFICATE,
+    /**
+     * Decoding of the sign response's signature and of the key's public key, and ECDSA signature
+     * verification.
+     */
+    SIGNATURE,
+  }
+
+  private final Stage stage;
+
+  public VerificationException(Stage stage, String message) {
+    super(message);
+    this.stage = stage;
+  }
+
+  public VerificationException(Stage stage, String message, Throwable cause) {
+    super(message, cause);
+    this.stage = stage;
+  }
+
+  public Stage getStage() {
+    return stage;
+  }
+}
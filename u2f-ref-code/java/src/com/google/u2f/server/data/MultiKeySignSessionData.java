@@ -0,0 +1,42 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.data;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Session of a {@link com.google.u2f.server.messages.MultiKeySignRequest}: one challenge that any
+ * of the listed key handles may sign. It isn't tied to a single key, so
+ * {@link #getPublicKey()} and {@link #getKeyHandle()} return null.
+ */
+public class MultiKeySignSessionData extends SignSessionData {
+  private static final long serialVersionUID = 4513420893153396610L;
+
+  private final ArrayList<byte[]> allowedKeyHandles;
+
+  public MultiKeySignSessionData(String accountName, String appId, byte[] challenge,
+      List<byte[]> allowedKeyHandles) {
+    super(accountName, appId, challenge, null, null);
+    this.allowedKeyHandles = new ArrayList<byte[]>(allowedKeyHandles);
+  }
+
+  public List<byte[]> getAllowedKeyHandles() {
+    return Collections.unmodifiableList(allowedKeyHandles);
+  }
+
+  public boolean isAllowedKeyHandle(byte[] keyHandle) {
+    for (byte[] allowedKeyHandle : allowedKeyHandles) {
+      if (Arrays.equals(allowedKeyHandle, keyHandle)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
@@ -8,17 +8,22 @@ package com.google.u2f.server.data;
 
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import org.apache.commons.codec.binary.Base64;
 
 import com.google.common.base.Objects;
 
 public class SecurityKeyData {
+  private static final AtomicIntegerFieldUpdater<SecurityKeyData> COUNTER_UPDATER =
+      AtomicIntegerFieldUpdater.newUpdater(SecurityKeyData.class, "counter");
+
   private final long enrollmentTime;
   private final byte[] keyHandle;
   private final byte[] publicKey;
   private final X509Certificate attestationCert;
-  private int counter;
+  // updated in place by in-memory data stores, and read without locking
+  private volatile int counter;
 
   public SecurityKeyData(
 		  long enrollmentTime, 
@@ -59,6 +64,13 @@ public class SecurityKeyData {
   public void setCounter(int newCounterValue) {
     counter = newCounterValue;
   }
+
+  /**
+   * Sets the counter to {@code newCounterValue} if it is {@code expectedCounterValue}, atomically.
+   */
+  public boolean compareAndSetCounter(int expectedCounterValue, int newCounterValue) {
+    return COUNTER_UPDATER.compareAndSet(this, expectedCounterValue, newCounterValue);
+  }
   
   @Override
   public int hashCode() {
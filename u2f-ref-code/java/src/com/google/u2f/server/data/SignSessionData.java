@@ -10,13 +10,25 @@ public class SignSessionData extends EnrollSessionData {
   private static final long serialVersionUID = -1374014642398686120L;
   
   private final byte[] publicKey;
+  private final byte[] keyHandle;
   
   public SignSessionData(String accountName, String appId, byte[] challenge, byte[] publicKey) {
+    this(accountName, appId, challenge, publicKey, null);
+  }
+
+  public SignSessionData(String accountName, String appId, byte[] challenge, byte[] publicKey,
+      byte[] keyHandle) {
     super(accountName, appId, challenge);
     this.publicKey = publicKey;
+    this.keyHandle = keyHandle;
   }
 
   public byte[] getPublicKey() {
     return publicKey;
   }
+
+  /** The key handle of the security key being challenged, or null for older sessions. */
+  public byte[] getKeyHandle() {
+    return keyHandle;
+  }
 }
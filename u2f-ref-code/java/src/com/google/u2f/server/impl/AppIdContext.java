@@ -0,0 +1,61 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.util.Set;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.u2f.codec.ClientDataCodec;
+
+/**
+ * Immutable verification data for a single appId. {@link U2FServerReferenceImpl} builds one of
+ * these the first time it sees an appId and shares it between all subsequent requests, so that
+ * the appId hash isn't recomputed on every registration or authentication.
+ */
+final class AppIdContext {
+  private final String appId;
+  private final byte[] appIdSha256;
+  private final Set<String> allowedOrigins;
+  private final String registerType;
+  private final String authenticateType;
+
+  AppIdContext(String appId, byte[] appIdSha256, Set<String> canonicalOrigins) {
+    this.appId = appId;
+    this.appIdSha256 = appIdSha256.clone();
+    this.allowedOrigins = ImmutableSet.copyOf(canonicalOrigins);
+    this.registerType = ClientDataCodec.REQUEST_TYPE_REGISTER;
+    this.authenticateType = ClientDataCodec.REQUEST_TYPE_AUTHENTICATE;
+  }
+
+  String getAppId() {
+    return appId;
+  }
+
+  /** The SHA-256 of the appId. Shared between requests: callers must not modify it. */
+  byte[] getAppIdSha256() {
+    return appIdSha256;
+  }
+
+  /** Canonicalized origins (see {@link U2FServerReferenceImpl#canonicalizeOrigin}). */
+  Set<String> getAllowedOrigins() {
+    return allowedOrigins;
+  }
+
+  boolean isAllowedOrigin(String canonicalOrigin) {
+    return allowedOrigins.contains(canonicalOrigin);
+  }
+
+  /** Expected clientData "typ" of a registration response. */
+  String getRegisterType() {
+    return registerType;
+  }
+
+  /** Expected clientData "typ" of a sign response. */
+  String getAuthenticateType() {
+    return authenticateType;
+  }
+}
@@ -0,0 +1,256 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.u2f.U2FException;
+import com.google.u2f.server.AsyncU2FServer;
+import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SignSessionData;
+import com.google.u2f.server.messages.MultiKeySignRequest;
+import com.google.u2f.server.messages.RegistrationRequest;
+import com.google.u2f.server.messages.RegistrationResponse;
+import com.google.u2f.server.messages.SignRequest;
+import com.google.u2f.server.messages.SignResponse;
+import com.google.u2f.server.messages.SignResult;
+
+/**
+ * {@link AsyncU2FServer} on top of the stages of a {@link U2FServerReferenceImpl}: everything that
+ * touches the {@link com.google.u2f.server.DataStore} runs on an I/O executor, and the
+ * verification of client data and signatures runs on a (bounded) CPU executor.
+ *
+ * <p>Use {@link #newBoundedExecutor} for both executors to get backpressure: once an executor's
+ * queue is full, whoever hands it more work - the calling request thread, or the thread finishing
+ * the previous stage - runs that work itself, which slows it down instead of queueing without
+ * bound (and without risking a deadlock between two full executors).
+ */
+public class AsyncU2FServerReferenceImpl implements AsyncU2FServer {
+
+  private final U2FServerReferenceImpl server;
+  private final ListeningExecutorService ioExecutor;
+  private final ListeningExecutorService cpuExecutor;
+
+  public AsyncU2FServerReferenceImpl(U2FServerReferenceImpl server,
+      ListeningExecutorService ioExecutor, ListeningExecutorService cpuExecutor) {
+    this.server = server;
+    this.ioExecutor = ioExecutor;
+    this.cpuExecutor = cpuExecutor;
+  }
+
+  /**
+   * Returns an executor with {@code threads} daemon threads and room for {@code queueCapacity}
+   * waiting tasks, which makes the submitting thread run a task itself when the queue is full.
+   */
+  public static ListeningExecutorService newBoundedExecutor(String name, int threads,
+      int queueCapacity) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.SECONDS,
+        new ArrayBlockingQueue<Runnable>(queueCapacity),
+        new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build(),
+        new RejectedExecutionHandler() {
+          @Override
+          public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+              throw new RejectedExecutionException("Executor has been shut down");
+            }
+            task.run();
+          }
+        });
+    return MoreExecutors.listeningDecorator(executor);
+  }
+
+  @Override
+  public ListenableFuture<RegistrationRequest> getRegistrationRequest(final String accountName,
+      final String appId) {
+    return submit(ioExecutor, new Callable<RegistrationRequest>() {
+      @Override
+      public RegistrationRequest call() {
+        return server.getRegistrationRequest(accountName, appId);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<SecurityKeyData> processRegistrationResponse(
+      final RegistrationResponse registrationResponse, final long currentTimeInMillis) {
+    final ListenableFuture<EnrollSessionData> sessionData =
+        submit(ioExecutor, new Callable<EnrollSessionData>() {
+          @Override
+          public EnrollSessionData call() throws U2FException {
+            return server.getEnrollSessionData(registrationResponse.getSessionId());
+          }
+        });
+    final ListenableFuture<Set<X509Certificate>> trustedCertificates =
+        submit(ioExecutor, new Callable<Set<X509Certificate>>() {
+          @Override
+          public Set<X509Certificate> call() {
+            return server.getTrustedCertificates();
+          }
+        });
+    List<ListenableFuture<?>> inputs =
+        ImmutableList.<ListenableFuture<?>>of(sessionData, trustedCertificates);
+    final ListenableFuture<SecurityKeyData> securityKeyData = Futures.transform(
+        Futures.allAsList(inputs),
+        new AsyncFunction<List<Object>, SecurityKeyData>() {
+          @Override
+          public ListenableFuture<SecurityKeyData> apply(List<Object> input) {
+            return submit(cpuExecutor, new Callable<SecurityKeyData>() {
+              @Override
+              public SecurityKeyData call() throws Exception {
+                return server.verifyRegistrationResponse(registrationResponse,
+                    sessionData.get(), trustedCertificates.get(), currentTimeInMillis);
+              }
+            });
+          }
+        });
+    return Futures.transform(securityKeyData,
+        new AsyncFunction<SecurityKeyData, SecurityKeyData>() {
+          @Override
+          public ListenableFuture<SecurityKeyData> apply(final SecurityKeyData input) {
+            return submit(ioExecutor, new Callable<SecurityKeyData>() {
+              @Override
+              public SecurityKeyData call() throws Exception {
+                server.addSecurityKeyData(sessionData.get(), input);
+                return input;
+              }
+            });
+          }
+        });
+  }
+
+  @Override
+  public ListenableFuture<List<SignRequest>> getSignRequest(final String accountName,
+      final String appId) {
+    return submit(ioExecutor, new Callable<List<SignRequest>>() {
+      @Override
+      public List<SignRequest> call() throws U2FException {
+        return server.getSignRequest(accountName, appId);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<MultiKeySignRequest> getMultiKeySignRequest(final String accountName,
+      final String appId) {
+    return submit(ioExecutor, new Callable<MultiKeySignRequest>() {
+      @Override
+      public MultiKeySignRequest call() throws U2FException {
+        return server.getMultiKeySignRequest(accountName, appId);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<SecurityKeyData> processSignResponse(final SignResponse signResponse) {
+    final ListenableFuture<SignSessionData> sessionData =
+        submit(ioExecutor, new Callable<SignSessionData>() {
+          @Override
+          public SignSessionData call() throws U2FException {
+            return server.getSignSessionData(signResponse.getSessionId());
+          }
+        });
+    final ListenableFuture<SecurityKeyData> securityKeyData = Futures.transform(sessionData,
+        new AsyncFunction<SignSessionData, SecurityKeyData>() {
+          @Override
+          public ListenableFuture<SecurityKeyData> apply(final SignSessionData input) {
+            // not necessarily on an I/O thread: the session lookup may have completed inline
+            return submit(ioExecutor, new Callable<SecurityKeyData>() {
+              @Override
+              public SecurityKeyData call() throws U2FException {
+                return server.getSecurityKeyData(input, signResponse);
+              }
+            });
+          }
+        });
+    final ListenableFuture<Integer> counter = Futures.transform(securityKeyData,
+        new AsyncFunction<SecurityKeyData, Integer>() {
+          @Override
+          public ListenableFuture<Integer> apply(final SecurityKeyData input) {
+            return submit(cpuExecutor, new Callable<Integer>() {
+              @Override
+              public Integer call() throws Exception {
+                return server.verifySignResponse(signResponse, sessionData.get(), input);
+              }
+            });
+          }
+        });
+    return Futures.transform(counter, new AsyncFunction<Integer, SecurityKeyData>() {
+      @Override
+      public ListenableFuture<SecurityKeyData> apply(final Integer input) {
+        return submit(ioExecutor, new Callable<SecurityKeyData>() {
+          @Override
+          public SecurityKeyData call() throws Exception {
+            server.updateSecurityKeyCounter(sessionData.get(), securityKeyData.get(), input);
+            return securityKeyData.get();
+          }
+        });
+      }
+    });
+  }
+
+  /**
+   * Runs the whole batch on the I/O executor; the signature checks within the batch go to the
+   * verification executor of the underlying {@link U2FServerReferenceImpl}.
+   */
+  @Override
+  public ListenableFuture<List<SignResult>> processSignResponses(
+      final List<SignResponse> signResponses) {
+    return submit(ioExecutor, new Callable<List<SignResult>>() {
+      @Override
+      public List<SignResult> call() {
+        return server.processSignResponses(signResponses);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<List<SecurityKeyData>> getAllSecurityKeys(final String accountName) {
+    return submit(ioExecutor, new Callable<List<SecurityKeyData>>() {
+      @Override
+      public List<SecurityKeyData> call() {
+        return server.getAllSecurityKeys(accountName);
+      }
+    });
+  }
+
+  @Override
+  public ListenableFuture<Void> removeSecurityKey(final String accountName,
+      final byte[] publicKey) {
+    return submit(ioExecutor, new Callable<Void>() {
+      @Override
+      public Void call() throws U2FException {
+        server.removeSecurityKey(accountName, publicKey);
+        return null;
+      }
+    });
+  }
+
+  private static <T> ListenableFuture<T> submit(ListeningExecutorService executor,
+      Callable<T> task) {
+    try {
+      return executor.submit(task);
+    } catch (RejectedExecutionException e) {
+      return Futures.immediateFailedFuture(e);
+    }
+  }
+}
@@ -0,0 +1,90 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Ticker;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Bounded, thread-safe cache of parsed attestation certificates, keyed by the SHA-256 of their DER
+ * encoding. There are only as many attestation certificates as authenticator model batches, so
+ * registrations with a model that has been seen before skip parsing the certificate and extracting
+ * its public key.
+ *
+ * <p>Only the parsing is cached: whether a certificate is trusted is up to the caller, checked
+ * against the current trusted certificates every time.
+ */
+public class AttestationCertificateCache {
+  public static final long DEFAULT_MAXIMUM_SIZE = 1000;
+  public static final long DEFAULT_EXPIRY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  private final Cache<ByteBuffer, AttestationCertificate> cache;
+
+  public AttestationCertificateCache() {
+    this(DEFAULT_MAXIMUM_SIZE, DEFAULT_EXPIRY_MILLIS, Ticker.systemTicker());
+  }
+
+  public AttestationCertificateCache(long maximumSize, long expiryMillis, Ticker ticker) {
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .expireAfterWrite(expiryMillis, TimeUnit.MILLISECONDS)
+        .ticker(ticker)
+        .recordStats()
+        .build();
+  }
+
+  /** Returns the certificate with SHA-256 fingerprint {@code fingerprint}, or null. */
+  public AttestationCertificate getIfPresent(byte[] fingerprint) {
+    return cache.getIfPresent(ByteBuffer.wrap(fingerprint));
+  }
+
+  /** Remembers a freshly parsed certificate. */
+  public AttestationCertificate put(byte[] fingerprint, X509Certificate certificate) {
+    AttestationCertificate attestationCertificate =
+        new AttestationCertificate(certificate, certificate.getPublicKey());
+    cache.put(ByteBuffer.wrap(fingerprint.clone()), attestationCertificate);
+    return attestationCertificate;
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  /** Hit, miss and eviction counts since this cache was created. */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+
+  public static class AttestationCertificate {
+    private final X509Certificate certificate;
+    private final PublicKey publicKey;
+
+    AttestationCertificate(X509Certificate certificate, PublicKey publicKey) {
+      this.certificate = certificate;
+      this.publicKey = publicKey;
+    }
+
+    public X509Certificate getCertificate() {
+      return certificate;
+    }
+
+    public PublicKey getPublicKey() {
+      return publicKey;
+    }
+  }
+}
@@ -6,30 +6,75 @@
 
 package com.google.u2f.server.impl;
 
-import java.security.InvalidKeyException;
-import java.security.KeyFactory;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
 import java.security.PublicKey;
 import java.security.Security;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.cert.X509Certificate;
-import java.security.spec.InvalidKeySpecException;
 
 import org.bouncycastle.asn1.sec.SECNamedCurves;
 import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.jcajce.provider.asymmetric.ec.BCECPublicKey;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 import org.bouncycastle.jce.spec.ECParameterSpec;
 import org.bouncycastle.jce.spec.ECPublicKeySpec;
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECFieldElement;
 import org.bouncycastle.math.ec.ECPoint;
 
 import com.google.u2f.U2FException;
 import com.google.u2f.server.Crypto;
 
 public class BouncyCastleCrypto implements Crypto {
+  private static final BouncyCastleProvider PROVIDER = new BouncyCastleProvider();
+
   static {
-    Security.addProvider(new BouncyCastleProvider());
+    Security.addProvider(PROVIDER);
+  }
+
+  // The curve domain is immutable, so it's set up once rather than for every decoded key.
+  static final X9ECParameters P256 = SECNamedCurves.getByName("secp256r1");
+  private static final ECParameterSpec P256_SPEC =
+      new ECParameterSpec(P256.getCurve(), P256.getG(), P256.getN(), P256.getH());
+  private static final int P256_FIELD_BYTES = (P256.getCurve().getFieldSize() + 7) / 8;
+
+  private final Provider signatureProvider;
+
+  // Engines are looked up once per thread, directly from their provider, instead of
+  // going through the (synchronized) provider list on every call.
+  private final ThreadLocalEngine<Signature> signatures = new ThreadLocalEngine<Signature>() {
+    @Override
+    protected Signature create() throws GeneralSecurityException {
+      return Signature.getInstance("SHA256withECDSA", signatureProvider);
+    }
+  };
+
+  private final ThreadLocalEngine<MessageDigest> sha256Digests =
+      new ThreadLocalEngine<MessageDigest>() {
+        @Override
+        protected MessageDigest create() throws GeneralSecurityException {
+          return MessageDigest.getInstance("SHA-256", PROVIDER);
+        }
+      };
+
+  public BouncyCastleCrypto() {
+    this(PROVIDER);
+  }
+
+  /**
+   * @param signatureProvider provides the SHA256withECDSA signature verification, see
+   *     {@link SignatureProviderSelector}. Keys are still decoded and hashed with Bouncy Castle.
+   */
+  public BouncyCastleCrypto(Provider signatureProvider) {
+    this.signatureProvider = signatureProvider;
+  }
+
+  public Provider getSignatureProvider() {
+    return signatureProvider;
   }
 
   @Override
@@ -41,51 +86,128 @@ public class BouncyCastleCrypto implements Crypto {
   @Override
   public boolean verifySignature(PublicKey publicKey, byte[] signedBytes,
       byte[] signature) throws U2FException {
+    return verifySignature(publicKey, ByteBuffer.wrap(signedBytes), ByteBuffer.wrap(signature));
+  }
+
+  @Override
+  public boolean verifySignature(X509Certificate attestationCertificate, ByteBuffer signedBytes,
+      ByteBuffer signature) throws U2FException {
+    return verifySignature(attestationCertificate.getPublicKey(), signedBytes, signature);
+  }
+
+  @Override
+  public boolean verifySignature(PublicKey publicKey, ByteBuffer signedBytes,
+      ByteBuffer signature) throws U2FException {
     try {
-      Signature ecdsaSignature = Signature.getInstance("SHA256withECDSA");
+      Signature ecdsaSignature = signatures.get();
       ecdsaSignature.initVerify(publicKey);
-      ecdsaSignature.update(signedBytes);
-      return ecdsaSignature.verify(signature);
-    } catch (InvalidKeyException e) {
-      throw new U2FException("Error when verifying signature", e);
-    } catch (SignatureException e) {
-      throw new U2FException("Error when verifying signature", e);
-    } catch (NoSuchAlgorithmException e) {
+      update(ecdsaSignature, signedBytes);
+      if (signature.hasArray()) {
+        return ecdsaSignature.verify(signature.array(),
+            signature.arrayOffset() + signature.position(), signature.remaining());
+      }
+      byte[] signatureBytes = new byte[signature.remaining()];
+      signature.duplicate().get(signatureBytes);
+      return ecdsaSignature.verify(signatureBytes);
+    } catch (GeneralSecurityException e) {
+      signatures.discard();
       throw new U2FException("Error when verifying signature", e);
+    } catch (RuntimeException e) {
+      signatures.discard();
+      throw e;
+    }
+  }
+
+  private static void update(Signature signature, ByteBuffer bytes) throws SignatureException {
+    if (bytes.hasArray()) {
+      signature.update(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+    } else {
+      signature.update(bytes.duplicate());
     }
   }
 
+  /**
+   * Decodes an uncompressed (65 byte) or compressed (33 byte) P-256 point into a public key. The
+   * key is built directly, without a KeyFactory, once the point has been checked to be a valid
+   * curve point.
+   */
   @Override
   public PublicKey decodePublicKey(byte[] encodedPublicKey) throws U2FException {
+    ECPoint point;
     try {
-      X9ECParameters curve = SECNamedCurves.getByName("secp256r1");
-      ECPoint point;
-      try {
-        point = curve.getCurve().decodePoint(encodedPublicKey);
-      } catch (RuntimeException e) {
-        throw new U2FException("Couldn't parse user public key", e);
-      }
+      point = P256.getCurve().decodePoint(checkEncodingLength(encodedPublicKey));
+    } catch (RuntimeException e) {
+      throw new U2FException("Couldn't parse user public key", e);
+    }
+    checkValidPoint(point);
+
+    // "EC" rather than "ECDSA", which providers other than Bouncy Castle don't accept
+    return new BCECPublicKey("EC", new ECPublicKeySpec(point, P256_SPEC),
+        BouncyCastleProvider.CONFIGURATION);
+  }
+
+  private static byte[] checkEncodingLength(byte[] encodedPublicKey) throws U2FException {
+    int expectedLength;
+    switch (encodedPublicKey.length > 0 ? encodedPublicKey[0] : -1) {
+      case 0x04:
+        expectedLength = 1 + 2 * P256_FIELD_BYTES;
+        break;
+      case 0x02:
+      case 0x03:
+        expectedLength = 1 + P256_FIELD_BYTES;
+        break;
+      default:
+        throw new U2FException("Couldn't parse user public key: unsupported point encoding");
+    }
+    if (encodedPublicKey.length != expectedLength) {
+      throw new U2FException("Couldn't parse user public key: wrong length");
+    }
+    return encodedPublicKey;
+  }
 
-      return KeyFactory.getInstance("ECDSA").generatePublic(
-          new ECPublicKeySpec(point,
-              new ECParameterSpec(
-                  curve.getCurve(),
-                  curve.getG(),
-                  curve.getN(),
-                  curve.getH())));
-    } catch (InvalidKeySpecException e) {
-      throw new U2FException("Error when decoding public key", e);
-    } catch (NoSuchAlgorithmException e) {
-      throw new U2FException("Error when decoding public key", e);
+  /**
+   * Checks that {@code point} is a finite point satisfying the curve equation. P-256 has cofactor
+   * 1, so every such point is also in the subgroup of order n.
+   */
+  static void checkValidPoint(ECPoint point) throws U2FException {
+    if (point.isInfinity()) {
+      throw new U2FException("Invalid user public key: point at infinity");
+    }
+    ECPoint normalized = point.normalize();
+    ECFieldElement x = normalized.getAffineXCoord();
+    ECFieldElement y = normalized.getAffineYCoord();
+    ECCurve curve = normalized.getCurve();
+    // y^2 == x^3 + ax + b
+    ECFieldElement lhs = y.square();
+    ECFieldElement rhs = x.square().add(curve.getA()).multiply(x).add(curve.getB());
+    if (!lhs.equals(rhs)) {
+      throw new U2FException("Invalid user public key: point is not on the curve");
     }
   }
 
   @Override
   public byte[] computeSha256(byte[] bytes) throws U2FException {
+    return computeSha256(bytes, 0, bytes.length);
+  }
+
+  @Override
+  public byte[] computeSha256(byte[] bytes, int offset, int length) throws U2FException {
+    return computeSha256(ByteBuffer.wrap(bytes, offset, length));
+  }
+
+  @Override
+  public byte[] computeSha256(ByteBuffer bytes) throws U2FException {
     try {
-      return MessageDigest.getInstance("SHA-256").digest(bytes);
-    } catch (NoSuchAlgorithmException e) {
+      MessageDigest sha256 = sha256Digests.get();
+      sha256.update(bytes.duplicate());
+      // digest() leaves the engine reset for the next call
+      return sha256.digest();
+    } catch (GeneralSecurityException e) {
+      sha256Digests.discard();
       throw new U2FException("Error when computing SHA-256", e);
+    } catch (RuntimeException e) {
+      sha256Digests.discard();
+      throw e;
     }
   }
 }
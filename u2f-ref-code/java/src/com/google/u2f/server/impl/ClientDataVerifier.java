@@ -0,0 +1,148 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static com.google.u2f.server.VerificationException.Stage.CLIENT_DATA;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.u2f.U2FException;
+import com.google.u2f.codec.ClientDataCodec;
+import com.google.u2f.server.VerificationException;
+
+/**
+ * Verifies the clientData ("browserdata") JSON that the browser signs over, in a single streaming
+ * pass over its UTF-8 bytes. Only the "typ", "challenge" and "origin" fields are read; everything
+ * else is skipped without building a JSON tree.
+ */
+final class ClientDataVerifier {
+  /** Upper bound on the size of the whole clientData, in bytes. */
+  static final int MAX_CLIENT_DATA_LENGTH = 16 * 1024;
+
+  /** Upper bound on the length of each of the fields we read, in characters. */
+  static final int MAX_FIELD_LENGTH = 2048;
+
+  // TODO: check ClientDataCodec.JSON_PROPERTY_CHANNEL_ID against the TLS channel id
+
+  private ClientDataVerifier() {}
+
+  /**
+   * Checks that {@code clientData} is a JSON object of the expected type, carrying the session's
+   * challenge and (if present) one of the appId's allowed origins.
+   */
+  static void verify(byte[] clientData, String messageType, byte[] expectedChallenge,
+      AppIdContext appIdContext) throws U2FException {
+    if (clientData.length > MAX_CLIENT_DATA_LENGTH) {
+      throw new VerificationException(CLIENT_DATA, "bad browserdata: too long");
+    }
+
+    String type = null;
+    String challenge = null;
+    String origin = null;
+
+    JsonReader reader = new JsonReader(new InputStreamReader(
+        new ByteArrayInputStream(clientData), Charsets.UTF_8));
+    try {
+      if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+        throw new VerificationException(CLIENT_DATA, "browserdata has wrong format");
+      }
+      reader.beginObject();
+      while (reader.hasNext()) {
+        String name = reader.nextName();
+        if (ClientDataCodec.JSON_PROPERTY_REQUEST_TYPE.equals(name)) {
+          checkNotSeen(name, type);
+          type = nextString(reader, name);
+          // cheapest check first: wrong message types are rejected before reading any further
+          if (!messageType.equals(type)) {
+            throw new VerificationException(CLIENT_DATA, "bad browserdata: bad type " + type);
+          }
+        } else if (ClientDataCodec.JSON_PROPERTY_SERVER_CHALLENGE_BASE64.equals(name)) {
+          checkNotSeen(name, challenge);
+          challenge = nextString(reader, name);
+        } else if (ClientDataCodec.JSON_PROPERTY_SERVER_ORIGIN.equals(name)) {
+          checkNotSeen(name, origin);
+          origin = nextString(reader, name);
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+      if (reader.peek() != JsonToken.END_DOCUMENT) {
+        throw new VerificationException(CLIENT_DATA, "browserdata has wrong format");
+      }
+    } catch (IOException e) {
+      // JsonReader reports malformed JSON as an IOException
+      throw new VerificationException(CLIENT_DATA, "browserdata has wrong format", e);
+    } catch (IllegalStateException e) {
+      // ...and unexpected tokens as an IllegalStateException
+      throw new VerificationException(CLIENT_DATA, "browserdata has wrong format", e);
+    }
+
+    // check that the right "typ" parameter is present in the browserdata JSON
+    if (type == null) {
+      throw new VerificationException(CLIENT_DATA, "bad browserdata: missing 'typ' param");
+    }
+
+    // check that the right challenge is in the browserdata
+    if (challenge == null) {
+      throw new VerificationException(CLIENT_DATA,
+          "bad browserdata: missing 'challenge' param");
+    }
+
+    if (origin != null) {
+      verifyOrigin(origin, appIdContext);
+    }
+
+    if (!Arrays.equals(Base64.decodeBase64(challenge), expectedChallenge)) {
+      throw new VerificationException(CLIENT_DATA, "wrong challenge signed in browserdata");
+    }
+  }
+
+  private static void checkNotSeen(String name, String previousValue) throws U2FException {
+    if (previousValue != null) {
+      throw new VerificationException(CLIENT_DATA,
+          "bad browserdata: duplicate '" + name + "' param");
+    }
+  }
+
+  private static String nextString(JsonReader reader, String name)
+      throws IOException, U2FException {
+    if (reader.peek() != JsonToken.STRING) {
+      throw new VerificationException(CLIENT_DATA,
+          "bad browserdata: '" + name + "' param is not a string");
+    }
+    String value = reader.nextString();
+    if (value.length() > MAX_FIELD_LENGTH) {
+      throw new VerificationException(CLIENT_DATA,
+          "bad browserdata: '" + name + "' param is too long");
+    }
+    return value;
+  }
+
+  private static void verifyOrigin(String origin, AppIdContext appIdContext)
+      throws U2FException {
+    String canonicalOrigin;
+    try {
+      canonicalOrigin = U2FServerReferenceImpl.canonicalizeOrigin(origin);
+    } catch (RuntimeException e) {
+      throw new VerificationException(CLIENT_DATA,
+          "bad browserdata: malformed origin " + origin, e);
+    }
+    if (!appIdContext.isAllowedOrigin(canonicalOrigin)) {
+      throw new VerificationException(CLIENT_DATA, origin +
+          " is not a recognized home origin for this backend");
+    }
+  }
+}
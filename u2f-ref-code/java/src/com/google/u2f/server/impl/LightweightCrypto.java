@@ -0,0 +1,223 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.digests.SHA256Digest;
+import org.bouncycastle.crypto.params.ECDomainParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.signers.ECDSASigner;
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+
+import com.google.u2f.U2FException;
+import com.google.u2f.server.Crypto;
+
+/**
+ * {@link Crypto} that verifies P-256 signatures with Bouncy Castle's lightweight API
+ * ({@link SHA256Digest} and {@link ECDSASigner}) instead of a JCA {@link java.security.Signature},
+ * skipping the provider lookup, key translation and DER decoding that JCA does on every call.
+ *
+ * <p>The digest and signer are reused per thread. Signatures have to be strict DER: anything
+ * else is rejected. Certificates, keys on other curves and public key decoding go through the
+ * delegate.
+ */
+public class LightweightCrypto implements Crypto {
+  private static final ECCurve CURVE = BouncyCastleCrypto.P256.getCurve();
+  private static final ECDomainParameters P256_DOMAIN = new ECDomainParameters(CURVE,
+      BouncyCastleCrypto.P256.getG(), BouncyCastleCrypto.P256.getN(),
+      BouncyCastleCrypto.P256.getH());
+
+  private static final int SEQUENCE_TAG = 0x30;
+  private static final int INTEGER_TAG = 0x02;
+
+  private final Crypto delegate;
+
+  private final ThreadLocalEngine<SHA256Digest> sha256Digests =
+      new ThreadLocalEngine<SHA256Digest>() {
+        @Override
+        protected SHA256Digest create() {
+          return new SHA256Digest();
+        }
+      };
+
+  private final ThreadLocalEngine<ECDSASigner> verifiers = new ThreadLocalEngine<ECDSASigner>() {
+    @Override
+    protected ECDSASigner create() {
+      return new ECDSASigner();
+    }
+  };
+
+  public LightweightCrypto(Crypto delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public boolean verifySignature(X509Certificate attestationCertificate, byte[] signedBytes,
+      byte[] signature) throws U2FException {
+    return delegate.verifySignature(attestationCertificate, signedBytes, signature);
+  }
+
+  @Override
+  public boolean verifySignature(PublicKey publicKey, byte[] signedBytes, byte[] signature)
+      throws U2FException {
+    ECPoint q = getP256Point(publicKey);
+    if (q == null) {
+      return delegate.verifySignature(publicKey, signedBytes, signature);
+    }
+    return verify(q, computeSha256(signedBytes), signature, 0, signature.length);
+  }
+
+  @Override
+  public boolean verifySignature(X509Certificate attestationCertificate, ByteBuffer signedBytes,
+      ByteBuffer signature) throws U2FException {
+    return delegate.verifySignature(attestationCertificate, signedBytes, signature);
+  }
+
+  @Override
+  public boolean verifySignature(PublicKey publicKey, ByteBuffer signedBytes,
+      ByteBuffer signature) throws U2FException {
+    ECPoint q = getP256Point(publicKey);
+    if (q == null) {
+      return delegate.verifySignature(publicKey, signedBytes, signature);
+    }
+    byte[] hash = computeSha256(signedBytes);
+    if (signature.hasArray()) {
+      return verify(q, hash, signature.array(), signature.arrayOffset() + signature.position(),
+          signature.remaining());
+    }
+    byte[] signatureBytes = new byte[signature.remaining()];
+    signature.duplicate().get(signatureBytes);
+    return verify(q, hash, signatureBytes, 0, signatureBytes.length);
+  }
+
+  @Override
+  public PublicKey decodePublicKey(byte[] encodedPublicKey) throws U2FException {
+    return delegate.decodePublicKey(encodedPublicKey);
+  }
+
+  @Override
+  public byte[] computeSha256(byte[] bytes) throws U2FException {
+    return computeSha256(bytes, 0, bytes.length);
+  }
+
+  @Override
+  public byte[] computeSha256(byte[] bytes, int offset, int length) throws U2FException {
+    try {
+      SHA256Digest sha256 = sha256Digests.get();
+      sha256.update(bytes, offset, length);
+      byte[] hash = new byte[sha256.getDigestSize()];
+      // doFinal() leaves the digest reset for the next call
+      sha256.doFinal(hash, 0);
+      return hash;
+    } catch (GeneralSecurityException e) {
+      sha256Digests.discard();
+      throw new U2FException("Error when computing SHA-256", e);
+    } catch (RuntimeException e) {
+      sha256Digests.discard();
+      throw e;
+    }
+  }
+
+  @Override
+  public byte[] computeSha256(ByteBuffer bytes) throws U2FException {
+    if (bytes.hasArray()) {
+      return computeSha256(bytes.array(), bytes.arrayOffset() + bytes.position(),
+          bytes.remaining());
+    }
+    byte[] copy = new byte[bytes.remaining()];
+    bytes.duplicate().get(copy);
+    return computeSha256(copy);
+  }
+
+  private boolean verify(ECPoint q, byte[] hash, byte[] signature, int offset, int length)
+      throws U2FException {
+    BigInteger[] rs = decodeStrictDerSignature(signature, offset, length);
+    if (rs == null) {
+      return false;
+    }
+    try {
+      ECDSASigner verifier = verifiers.get();
+      verifier.init(false, new ECPublicKeyParameters(q, P256_DOMAIN));
+      return verifier.verifySignature(hash, rs[0], rs[1]);
+    } catch (GeneralSecurityException e) {
+      verifiers.discard();
+      throw new U2FException("Error when verifying signature", e);
+    } catch (RuntimeException e) {
+      verifiers.discard();
+      throw e;
+    }
+  }
+
+  /** Returns the point of {@code publicKey} on {@link #CURVE}, or null if it's not a P-256 key. */
+  private static ECPoint getP256Point(PublicKey publicKey) {
+    if (!(publicKey instanceof ECPublicKey)
+        || !PrecomputedKeyCrypto.isP256(((ECPublicKey) publicKey).getParams())) {
+      return null;
+    }
+    if (publicKey instanceof org.bouncycastle.jce.interfaces.ECPublicKey) {
+      // keys from BouncyCastleCrypto.decodePublicKey are already on CURVE
+      return CURVE.importPoint(((org.bouncycastle.jce.interfaces.ECPublicKey) publicKey).getQ());
+    }
+    java.security.spec.ECPoint w = ((ECPublicKey) publicKey).getW();
+    return CURVE.createPoint(w.getAffineX(), w.getAffineY());
+  }
+
+  /**
+   * Returns {r, s} if {@code signature[offset, offset + length)} is the DER encoding of a sequence
+   * of two non-negative integers, or null if it isn't. Only the canonical encoding is accepted:
+   * definite short-form lengths (an ECDSA signature is never 128 bytes long), minimal integer
+   * encodings and nothing trailing.
+   */
+  static BigInteger[] decodeStrictDerSignature(byte[] signature, int offset, int length) {
+    int end = offset + length;
+    if (length < 2 || length - 2 >= 0x80 || (signature[offset] & 0xff) != SEQUENCE_TAG
+        || (signature[offset + 1] & 0xff) != length - 2) {
+      return null;
+    }
+    int[] position = {offset + 2};
+    BigInteger r = decodeStrictDerInteger(signature, position, end);
+    if (r == null) {
+      return null;
+    }
+    BigInteger s = decodeStrictDerInteger(signature, position, end);
+    if (s == null || position[0] != end) {
+      return null;
+    }
+    return new BigInteger[] {r, s};
+  }
+
+  /** Decodes the integer at {@code position[0]} and advances past it, or returns null. */
+  private static BigInteger decodeStrictDerInteger(byte[] bytes, int[] position, int end) {
+    int start = position[0];
+    if (end - start < 3 || (bytes[start] & 0xff) != INTEGER_TAG) {
+      return null;
+    }
+    int length = bytes[start + 1] & 0xff;
+    int valueStart = start + 2;
+    if (length == 0 || length >= 0x80 || length > end - valueStart) {
+      return null;
+    }
+    if ((bytes[valueStart] & 0x80) != 0) {
+      // negative
+      return null;
+    }
+    if (length > 1 && bytes[valueStart] == 0 && (bytes[valueStart + 1] & 0x80) == 0) {
+      // padded with a zero byte that isn't needed
+      return null;
+    }
+    position[0] = valueStart + length;
+    return new BigInteger(1, Arrays.copyOfRange(bytes, valueStart, valueStart + length));
+  }
+}
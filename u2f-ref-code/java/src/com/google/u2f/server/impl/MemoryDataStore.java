@@ -6,61 +6,160 @@
 
 package com.google.u2f.server.impl;
 
+import java.nio.ByteBuffer;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
 
-import com.google.common.base.Objects;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Striped;
 import com.google.u2f.server.DataStore;
 import com.google.u2f.server.SessionIdGenerator;
 import com.google.u2f.server.data.EnrollSessionData;
 import com.google.u2f.server.data.SecurityKeyData;
 import com.google.u2f.server.data.SignSessionData;
 
+/**
+ * Thread-safe in-memory {@link DataStore}.
+ *
+ * <p>Each account's security keys are an immutable snapshot (the key list and its key handle and
+ * public key indexes), which writers replace as a whole while holding the account's lock stripe.
+ * Readers never lock: they get whichever snapshot is current.
+ *
+ * <p>Sessions expire {@code sessionTtlMillis} after they were stored, and are looked up as unknown
+ * from then on. {@link TimerWheel}s remove them, so the sessions of abandoned registrations and
+ * sign-ins don't pile up. Sessions are spread over the wheels by the hash of their id, each wheel
+ * has its own lock, and storing a session advances only the wheel it went into, so concurrent
+ * stores rarely wait on one another.
+ */
 public class MemoryDataStore implements DataStore {
-  private final Set<X509Certificate> trustedCertificateDataBase = Sets.newHashSet();
-  private final HashMap<String, EnrollSessionData> sessionDataBase = Maps.newHashMap();
-  private final HashMap<String, List<SecurityKeyData>> securityKeyDataBase = Maps.newHashMap();
+  public static final long DEFAULT_SESSION_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  private static final int LOCK_STRIPES = 64;
+  private static final int EXPIRY_WHEELS = 16;
+  // ticks per session lifetime, i.e. how late after its deadline a session may be removed
+  private static final int TICKS_PER_SESSION_TTL = 64;
+
+  private final Set<X509Certificate> trustedCertificateDataBase = Sets.newConcurrentHashSet();
+  private final ConcurrentMap<String, Session> sessionDataBase = Maps.newConcurrentMap();
+  private final ConcurrentMap<String, AccountKeys> securityKeyDataBase = Maps.newConcurrentMap();
+  private final Striped<Lock> accountLocks = Striped.lock(LOCK_STRIPES);
   private final SessionIdGenerator sessionIdGenerator;
-  
+  private final long sessionTtlNanos;
+  private final Ticker ticker;
+  // holds expiry tokens rather than sessions, so that a taken session is freed straight away
+  private final List<TimerWheel<ExpiryToken>> sessionExpiry;
+  private final AtomicLong expiredSessions = new AtomicLong();
+
   public MemoryDataStore(SessionIdGenerator sessionIdGenerator) {
-	  this.sessionIdGenerator = sessionIdGenerator;
+    this(sessionIdGenerator, DEFAULT_SESSION_TTL_MILLIS, Ticker.systemTicker());
   }
-  
+
+  public MemoryDataStore(SessionIdGenerator sessionIdGenerator, long sessionTtlMillis,
+      Ticker ticker) {
+    this.sessionIdGenerator = sessionIdGenerator;
+    this.sessionTtlNanos = TimeUnit.MILLISECONDS.toNanos(sessionTtlMillis);
+    this.ticker = ticker;
+    long now = ticker.read();
+    ImmutableList.Builder<TimerWheel<ExpiryToken>> sessionExpiry = ImmutableList.builder();
+    for (int i = 0; i < EXPIRY_WHEELS; i++) {
+      // slots for a whole lifetime, so that sessions are removed on the first visit to their slot
+      sessionExpiry.add(new TimerWheel<ExpiryToken>(
+          Math.max(1, sessionTtlNanos / TICKS_PER_SESSION_TTL), TICKS_PER_SESSION_TTL + 2, now));
+    }
+    this.sessionExpiry = sessionExpiry.build();
+  }
+
   @Override
   public String storeSessionData(EnrollSessionData sessionData) {
-	String sessionId = sessionIdGenerator.generateSessionId(sessionData.getAccountName());
-    sessionDataBase.put(sessionId, sessionData);
+    String sessionId = sessionIdGenerator.generateSessionId(sessionData.getAccountName());
+    long now = ticker.read();
+    Session session = new Session(sessionData, now + sessionTtlNanos, new ExpiryToken(sessionId));
+    sessionDataBase.put(sessionId, session);
+    TimerWheel<ExpiryToken> wheel = sessionExpiry.get(wheelOf(sessionId));
+    List<ExpiryToken> expired;
+    synchronized (wheel) {
+      wheel.schedule(session.expiryToken, session.deadlineNanos);
+      expired = wheel.advance(now);
+    }
+    removeExpired(expired);
     return sessionId;
   }
 
   @Override
   public EnrollSessionData getEnrollSessionData(String sessionId) {
-    return sessionDataBase.get(sessionId);
+    return getLiveData(sessionDataBase.get(sessionId));
   }
-  
+
   @Override
   public SignSessionData getSignSessionData(String sessionId) {
-    return (SignSessionData) sessionDataBase.get(sessionId);
+    return (SignSessionData) getEnrollSessionData(sessionId);
+  }
+
+  /** Lock-free: the map's atomic remove decides which caller gets the session. */
+  @Override
+  public EnrollSessionData takeSessionData(String sessionId) {
+    return getLiveData(sessionDataBase.remove(sessionId));
+  }
+
+  @Override
+  public Map<String, SignSessionData> takeSignSessionData(Collection<String> sessionIds) {
+    Map<String, SignSessionData> result = Maps.newHashMap();
+    for (String sessionId : sessionIds) {
+      Session session = sessionDataBase.get(sessionId);
+      // sessions of the wrong type stay, just as a lookup would have left them
+      if (session != null && session.data instanceof SignSessionData
+          && sessionDataBase.remove(sessionId, session)) {
+        EnrollSessionData sessionData = getLiveData(session);
+        if (sessionData != null) {
+          result.put(sessionId, (SignSessionData) sessionData);
+        }
+      }
+    }
+    return result;
   }
 
   @Override
   public void addSecurityKeyData(String accountName, SecurityKeyData securityKeyData) {
-    List<SecurityKeyData> tokens = getSecurityKeyData(accountName);
-    tokens.add(securityKeyData);
-    securityKeyDataBase.put(accountName, tokens);
+    Lock lock = accountLocks.get(accountName);
+    lock.lock();
+    try {
+      securityKeyDataBase.put(accountName,
+          getAccountKeys(accountName).with(securityKeyData));
+    } finally {
+      lock.unlock();
+    }
   }
 
+  /** Returns an immutable snapshot of the security keys of {@code accountName}. */
   @Override
   public List<SecurityKeyData> getSecurityKeyData(String accountName) {
-    return Objects.firstNonNull(
-        securityKeyDataBase.get(accountName),
-        Lists.<SecurityKeyData>newArrayList());
+    return getAccountKeys(accountName).keys;
+  }
+
+  @Override
+  public Map<String, List<SecurityKeyData>> getSecurityKeyData(Collection<String> accountNames) {
+    Map<String, List<SecurityKeyData>> result = Maps.newHashMap();
+    for (String accountName : accountNames) {
+      result.put(accountName, getSecurityKeyData(accountName));
+    }
+    return result;
+  }
+
+  @Override
+  public SecurityKeyData getSecurityKeyData(String accountName, byte[] keyHandle) {
+    return getAccountKeys(accountName).byKeyHandle.get(ByteBuffer.wrap(keyHandle));
   }
 
   @Override
@@ -75,24 +174,168 @@ public class MemoryDataStore implements DataStore {
 
   @Override
   public void removeSecuityKey(String accountName, byte[] publicKey) {
-    List<SecurityKeyData> tokens = getSecurityKeyData(accountName);
-    for (SecurityKeyData token : tokens) {
-      if (Arrays.equals(token.getPublicKey(), publicKey)) {
-        tokens.remove(token);
-        break;
+    Lock lock = accountLocks.get(accountName);
+    lock.lock();
+    try {
+      AccountKeys accountKeys = getAccountKeys(accountName);
+      SecurityKeyData token = accountKeys.byPublicKey.get(ByteBuffer.wrap(publicKey));
+      if (token != null) {
+        securityKeyDataBase.put(accountName, accountKeys.without(token));
       }
+    } finally {
+      lock.unlock();
     }
   }
 
   @Override
   public void updateSecurityKeyCounter(String accountName, byte[] publicKey,
       int newCounterValue) {
-    List<SecurityKeyData> tokens = getSecurityKeyData(accountName);
-    for (SecurityKeyData token : tokens) {
-      if (Arrays.equals(token.getPublicKey(), publicKey)) {
+    Lock lock = accountLocks.get(accountName);
+    lock.lock();
+    try {
+      SecurityKeyData token =
+          getAccountKeys(accountName).byPublicKey.get(ByteBuffer.wrap(publicKey));
+      if (token != null) {
         token.setCounter(newCounterValue);
-        break;
       }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /** Lock-free: the counter is swapped in place, without the account's lock stripe. */
+  @Override
+  public boolean compareAndSetCounter(String accountName, byte[] keyHandle,
+      int expectedCounterValue, int newCounterValue) {
+    SecurityKeyData token = getSecurityKeyData(accountName, keyHandle);
+    return token != null && token.compareAndSetCounter(expectedCounterValue, newCounterValue);
+  }
+
+  /** Removes the sessions that have expired by now. */
+  public void expireSessions() {
+    long now = ticker.read();
+    for (TimerWheel<ExpiryToken> wheel : sessionExpiry) {
+      List<ExpiryToken> expired;
+      synchronized (wheel) {
+        expired = wheel.advance(now);
+      }
+      removeExpired(expired);
+    }
+  }
+
+  /** The number of sessions that have been stored and have not expired yet. */
+  public int getLiveSessionCount() {
+    expireSessions();
+    return sessionDataBase.size();
+  }
+
+  /** The number of sessions removed because they expired, since this store was created. */
+  public long getExpiredSessionCount() {
+    return expiredSessions.get();
+  }
+
+  /** Whether the store still holds the session with the given id, expired or not. */
+  boolean containsSession(String sessionId) {
+    return sessionDataBase.containsKey(sessionId);
+  }
+
+  /** The ids of the sessions the expiry wheels still hold a token for. */
+  List<String> getScheduledSessionIds() {
+    List<String> sessionIds = Lists.newArrayList();
+    for (TimerWheel<ExpiryToken> wheel : sessionExpiry) {
+      synchronized (wheel) {
+        for (ExpiryToken expiryToken : wheel.items()) {
+          sessionIds.add(expiryToken.sessionId);
+        }
+      }
+    }
+    return sessionIds;
+  }
+
+  // expired sessions are rejected even if the wheel hasn't got round to removing them yet
+  private EnrollSessionData getLiveData(Session session) {
+    if (session == null || ticker.read() - session.deadlineNanos >= 0) {
+      return null;
+    }
+    return session.data;
+  }
+
+  private static int wheelOf(String sessionId) {
+    int hash = sessionId.hashCode();
+    return (hash ^ (hash >>> 16)) & (EXPIRY_WHEELS - 1);
+  }
+
+  private void removeExpired(List<ExpiryToken> expired) {
+    for (ExpiryToken expiryToken : expired) {
+      // the session may have been taken, or its id reused for a newer session, since
+      Session session = sessionDataBase.get(expiryToken.sessionId);
+      if (session != null && session.expiryToken == expiryToken
+          && sessionDataBase.remove(expiryToken.sessionId, session)) {
+        expiredSessions.incrementAndGet();
+      }
+    }
+  }
+
+  private AccountKeys getAccountKeys(String accountName) {
+    AccountKeys accountKeys = securityKeyDataBase.get(accountName);
+    return (accountKeys == null) ? AccountKeys.EMPTY : accountKeys;
+  }
+
+  private static final class Session {
+    final EnrollSessionData data;
+    final long deadlineNanos;
+    final ExpiryToken expiryToken;
+
+    Session(EnrollSessionData data, long deadlineNanos, ExpiryToken expiryToken) {
+      this.data = data;
+      this.deadlineNanos = deadlineNanos;
+      this.expiryToken = expiryToken;
+    }
+  }
+
+  /** What the timer wheel holds for a session: its id, and nothing that refers to its data. */
+  private static final class ExpiryToken {
+    final String sessionId;
+
+    ExpiryToken(String sessionId) {
+      this.sessionId = sessionId;
+    }
+  }
+
+  /** The security keys of one account, indexed so that lookups don't scan them. Immutable. */
+  private static final class AccountKeys {
+    static final AccountKeys EMPTY = new AccountKeys(ImmutableList.<SecurityKeyData>of());
+
+    final ImmutableList<SecurityKeyData> keys;
+    final ImmutableMap<ByteBuffer, SecurityKeyData> byKeyHandle;
+    final ImmutableMap<ByteBuffer, SecurityKeyData> byPublicKey;
+
+    AccountKeys(ImmutableList<SecurityKeyData> keys) {
+      this.keys = keys;
+      // later keys win, as they did in the mutable indexes
+      Map<ByteBuffer, SecurityKeyData> byKeyHandle = Maps.newHashMap();
+      Map<ByteBuffer, SecurityKeyData> byPublicKey = Maps.newHashMap();
+      for (SecurityKeyData key : keys) {
+        byKeyHandle.put(ByteBuffer.wrap(key.getKeyHandle()), key);
+        byPublicKey.put(ByteBuffer.wrap(key.getPublicKey()), key);
+      }
+      this.byKeyHandle = ImmutableMap.copyOf(byKeyHandle);
+      this.byPublicKey = ImmutableMap.copyOf(byPublicKey);
+    }
+
+    AccountKeys with(SecurityKeyData key) {
+      return new AccountKeys(
+          ImmutableList.<SecurityKeyData>builder().addAll(keys).add(key).build());
+    }
+
+    AccountKeys without(SecurityKeyData key) {
+      ImmutableList.Builder<SecurityKeyData> remaining = ImmutableList.builder();
+      for (SecurityKeyData k : keys) {
+        if (k != key) {
+          remaining.add(k);
+        }
+      }
+      return new AccountKeys(remaining.build());
     }
   }
 }
@@ -0,0 +1,541 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.u2f.server.DataStore;
+import com.google.u2f.server.SessionIdGenerator;
+import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SignSessionData;
+
+/**
+ * {@link DataStore} that keeps pending sessions off the Java heap, and hands everything else to a
+ * delegate.
+ *
+ * <p>Each session is packed into a fixed-size slot of a direct {@link ByteBuffer} slab: its session
+ * id, account name, challenge, public key and key handle as length-prefixed bytes, its expiry
+ * time, and the index of its app id in a small table of interned app ids. An open addressing index
+ * from session id to slot, and the list of free slots, are direct buffers too. So however many
+ * sessions are pending, the garbage collector sees a handful of objects; session objects are only
+ * created when a session is read.
+ *
+ * <p>Sessions that don't fit in a slot (multi-key sign sessions, oversized fields), or that arrive
+ * while the slabs are full, are stored in the delegate instead, which must return null for session
+ * ids it doesn't know.
+ *
+ * <p>Sessions are spread over partitions by the hash of their id, each with its own slabs, index
+ * and lock. Expired sessions are rejected when read, and freed by a clock hand that moves on a
+ * couple of slots whenever a session is stored.
+ */
+public class OffHeapSessionDataStore implements DataStore {
+  private static final int PARTITION_BITS = 4;
+  private static final int PARTITIONS = 1 << PARTITION_BITS;
+  private static final int SLAB_BYTES = 4 << 20;
+  private static final int SLOTS_SWEPT_PER_STORE = 2;
+
+  // slot layout: a type byte, then the lengths of the fields, then the fixed-size fields
+  private static final int TYPE = 0;
+  private static final int EXPIRY_NANOS = 8;
+  private static final int APP_ID_INDEX = 16;
+  private static final int HASH = 20;
+  private static final Field SESSION_ID = new Field(1, 24, 96);
+  private static final Field ACCOUNT_NAME = new Field(2, SESSION_ID.end(), 64);
+  private static final Field CHALLENGE = new Field(3, ACCOUNT_NAME.end(), 32);
+  private static final Field PUBLIC_KEY = new Field(4, CHALLENGE.end(), 65);
+  private static final Field KEY_HANDLE = new Field(5, PUBLIC_KEY.end(), 128);
+  static final int SLOT_SIZE = (KEY_HANDLE.end() + 7) & ~7;
+
+  private static final byte FREE = 0;
+  private static final byte ENROLL = 1;
+  private static final byte SIGN = 2;
+
+  private final DataStore delegate;
+  private final SessionIdGenerator sessionIdGenerator;
+  private final long sessionTtlNanos;
+  private final Ticker ticker;
+  // seeded, so that session ids can't be picked to collide in the index
+  private final HashFunction hashFunction = Hashing.murmur3_32(new SecureRandom().nextInt());
+  private final int slotsPerSlab;
+  private final Partition[] partitions = new Partition[PARTITIONS];
+  private final List<String> appIds = new CopyOnWriteArrayList<String>();
+  private final ConcurrentMap<String, Integer> appIdIndexes = Maps.newConcurrentMap();
+  private final AtomicLong expiredSessions = new AtomicLong();
+  private final AtomicLong overflowSessions = new AtomicLong();
+  private final AtomicLong fullSweeps = new AtomicLong();
+
+  /**
+   * @param maxSessions how many sessions the slabs hold at most; slabs are allocated as they are
+   *     needed, up to {@code maxSessions * SLOT_SIZE} bytes in all
+   */
+  public OffHeapSessionDataStore(DataStore delegate, SessionIdGenerator sessionIdGenerator,
+      int maxSessions) {
+    this(delegate, sessionIdGenerator, maxSessions, MemoryDataStore.DEFAULT_SESSION_TTL_MILLIS,
+        Ticker.systemTicker());
+  }
+
+  public OffHeapSessionDataStore(DataStore delegate, SessionIdGenerator sessionIdGenerator,
+      int maxSessions, long sessionTtlMillis, Ticker ticker) {
+    Preconditions.checkArgument(maxSessions > 0, "maxSessions must be positive");
+    this.delegate = delegate;
+    this.sessionIdGenerator = sessionIdGenerator;
+    this.sessionTtlNanos = TimeUnit.MILLISECONDS.toNanos(sessionTtlMillis);
+    this.ticker = ticker;
+    int partitionSize = (maxSessions + PARTITIONS - 1) / PARTITIONS;
+    this.slotsPerSlab = Math.min(partitionSize, SLAB_BYTES / SLOT_SIZE);
+    for (int i = 0; i < PARTITIONS; i++) {
+      partitions[i] = new Partition(partitionSize, ticker.read());
+    }
+  }
+
+  @Override
+  public String storeSessionData(EnrollSessionData sessionData) {
+    String sessionId = sessionIdGenerator.generateSessionId(sessionData.getAccountName());
+    if (!storeInSlab(sessionId, sessionData)) {
+      overflowSessions.incrementAndGet();
+      return delegate.storeSessionData(sessionData);
+    }
+    return sessionId;
+  }
+
+  @Override
+  public EnrollSessionData getEnrollSessionData(String sessionId) {
+    EnrollSessionData sessionData = readFromSlab(sessionId, false, false);
+    return (sessionData != null) ? sessionData : delegate.getEnrollSessionData(sessionId);
+  }
+
+  @Override
+  public SignSessionData getSignSessionData(String sessionId) {
+    return (SignSessionData) getEnrollSessionData(sessionId);
+  }
+
+  @Override
+  public EnrollSessionData takeSessionData(String sessionId) {
+    EnrollSessionData sessionData = readFromSlab(sessionId, true, false);
+    return (sessionData != null) ? sessionData : delegate.takeSessionData(sessionId);
+  }
+
+  @Override
+  public Map<String, SignSessionData> takeSignSessionData(Collection<String> sessionIds) {
+    Map<String, SignSessionData> result = Maps.newHashMap();
+    List<String> notInSlab = Lists.newArrayList();
+    for (String sessionId : sessionIds) {
+      SignSessionData sessionData = (SignSessionData) readFromSlab(sessionId, true, true);
+      if (sessionData != null) {
+        result.put(sessionId, sessionData);
+      } else {
+        notInSlab.add(sessionId);
+      }
+    }
+    if (!notInSlab.isEmpty()) {
+      result.putAll(delegate.takeSignSessionData(notInSlab));
+    }
+    return result;
+  }
+
+  /** The number of sessions held in the slabs, including expired ones not freed yet. */
+  public int getLiveSessionCount() {
+    int count = 0;
+    for (Partition partition : partitions) {
+      count += partition.size();
+    }
+    return count;
+  }
+
+  /** The number of sessions freed because they expired, since this store was created. */
+  public long getExpiredSessionCount() {
+    return expiredSessions.get();
+  }
+
+  /** The number of sessions that didn't fit in the slabs and went to the delegate. */
+  public long getOverflowSessionCount() {
+    return overflowSessions.get();
+  }
+
+  /** The number of times a full partition was swept end to end to make room. */
+  long getFullSweepCount() {
+    return fullSweeps.get();
+  }
+
+  @Override
+  public void addTrustedCertificate(X509Certificate certificate) {
+    delegate.addTrustedCertificate(certificate);
+  }
+
+  @Override
+  public Set<X509Certificate> getTrustedCertificates() {
+    return delegate.getTrustedCertificates();
+  }
+
+  @Override
+  public void addSecurityKeyData(String accountName, SecurityKeyData securityKeyData) {
+    delegate.addSecurityKeyData(accountName, securityKeyData);
+  }
+
+  @Override
+  public List<SecurityKeyData> getSecurityKeyData(String accountName) {
+    return delegate.getSecurityKeyData(accountName);
+  }
+
+  @Override
+  public Map<String, List<SecurityKeyData>> getSecurityKeyData(Collection<String> accountNames) {
+    return delegate.getSecurityKeyData(accountNames);
+  }
+
+  @Override
+  public SecurityKeyData getSecurityKeyData(String accountName, byte[] keyHandle) {
+    return delegate.getSecurityKeyData(accountName, keyHandle);
+  }
+
+  @Override
+  public void removeSecuityKey(String accountName, byte[] publicKey) {
+    delegate.removeSecuityKey(accountName, publicKey);
+  }
+
+  @Override
+  public void updateSecurityKeyCounter(String accountName, byte[] publicKey,
+      int newCounterValue) {
+    delegate.updateSecurityKeyCounter(accountName, publicKey, newCounterValue);
+  }
+
+  @Override
+  public boolean compareAndSetCounter(String accountName, byte[] keyHandle,
+      int expectedCounterValue, int newCounterValue) {
+    return delegate.compareAndSetCounter(accountName, keyHandle, expectedCounterValue,
+        newCounterValue);
+  }
+
+  private boolean storeInSlab(String sessionId, EnrollSessionData sessionData) {
+    byte type;
+    byte[] publicKey = null;
+    byte[] keyHandle = null;
+    if (sessionData.getClass() == EnrollSessionData.class) {
+      type = ENROLL;
+    } else if (sessionData.getClass() == SignSessionData.class) {
+      type = SIGN;
+      publicKey = ((SignSessionData) sessionData).getPublicKey();
+      keyHandle = ((SignSessionData) sessionData).getKeyHandle();
+    } else {
+      return false;
+    }
+    byte[] id = sessionId.getBytes(Charsets.UTF_8);
+    byte[] accountName = sessionData.getAccountName().getBytes(Charsets.UTF_8);
+    if (!SESSION_ID.fits(id) || !ACCOUNT_NAME.fits(accountName)
+        || !CHALLENGE.fits(sessionData.getChallenge()) || !PUBLIC_KEY.fits(publicKey)
+        || !KEY_HANDLE.fits(keyHandle)) {
+      return false;
+    }
+    int hash = hashFunction.hashBytes(id).asInt();
+    long now = ticker.read();
+    return partitionOf(hash).store(id, hash, type, now + sessionTtlNanos,
+        getAppIdIndex(sessionData.getAppId()), accountName, sessionData.getChallenge(),
+        publicKey, keyHandle, now);
+  }
+
+  private EnrollSessionData readFromSlab(String sessionId, boolean take, boolean signOnly) {
+    byte[] id = sessionId.getBytes(Charsets.UTF_8);
+    if (!SESSION_ID.fits(id)) {
+      return null;
+    }
+    int hash = hashFunction.hashBytes(id).asInt();
+    return partitionOf(hash).read(id, hash, take, signOnly, ticker.read());
+  }
+
+  private int getAppIdIndex(String appId) {
+    Integer index = appIdIndexes.get(appId);
+    if (index == null) {
+      synchronized (appIds) {
+        index = appIdIndexes.get(appId);
+        if (index == null) {
+          index = appIds.size();
+          appIds.add(appId);
+          appIdIndexes.put(appId, index);
+        }
+      }
+    }
+    return index;
+  }
+
+  private Partition partitionOf(int hash) {
+    return partitions[hash >>> (Integer.SIZE - PARTITION_BITS)];
+  }
+
+  /** A length-prefixed byte array field of a slot. Lengths are a byte; 0xff stands for null. */
+  private static final class Field {
+    private static final int NULL_LENGTH = 0xff;
+
+    final int lengthOffset;
+    final int offset;
+    final int maxLength;
+
+    Field(int lengthOffset, int offset, int maxLength) {
+      this.lengthOffset = lengthOffset;
+      this.offset = offset;
+      this.maxLength = maxLength;
+    }
+
+    int end() {
+      return offset + maxLength;
+    }
+
+    boolean fits(byte[] value) {
+      return value == null || value.length <= maxLength;
+    }
+
+    void put(ByteBuffer slab, int base, byte[] value) {
+      if (value == null) {
+        slab.put(base + lengthOffset, (byte) NULL_LENGTH);
+        return;
+      }
+      slab.put(base + lengthOffset, (byte) value.length);
+      for (int i = 0; i < value.length; i++) {
+        slab.put(base + offset + i, value[i]);
+      }
+    }
+
+    byte[] get(ByteBuffer slab, int base) {
+      int length = slab.get(base + lengthOffset) & 0xff;
+      if (length == NULL_LENGTH) {
+        return null;
+      }
+      byte[] value = new byte[length];
+      for (int i = 0; i < length; i++) {
+        value[i] = slab.get(base + offset + i);
+      }
+      return value;
+    }
+
+    boolean matches(ByteBuffer slab, int base, byte[] value) {
+      if ((slab.get(base + lengthOffset) & 0xff) != value.length) {
+        return false;
+      }
+      for (int i = 0; i < value.length; i++) {
+        if (slab.get(base + offset + i) != value[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  /**
+   * One partition of the sessions. The index is a linear probing hash table of slot numbers plus
+   * one (0 marks an empty bucket), at most half full, and emptied with backward shift deletion so
+   * that it never fills up with tombstones.
+   */
+  private final class Partition {
+    private final int capacity;
+    private final ByteBuffer[] slabs;
+    private final IntBuffer index;
+    private final int indexMask;
+    private final IntBuffer freeSlots;
+    private int freeSlotCount;
+    // slots below this have been handed out before, and are either in use or on the free list
+    private int usedSlots;
+    private int size;
+    private int clockHand;
+    // a full partition frees nothing by sweeping before its earliest expiry
+    private long noFullSweepBeforeNanos;
+
+    Partition(int capacity, long nowNanos) {
+      this.capacity = capacity;
+      this.slabs = new ByteBuffer[(capacity + slotsPerSlab - 1) / slotsPerSlab];
+      int indexSize = Integer.highestOneBit(2 * capacity - 1) << 1;
+      this.index = ByteBuffer.allocateDirect(indexSize * 4).asIntBuffer();
+      this.indexMask = indexSize - 1;
+      this.freeSlots = ByteBuffer.allocateDirect(capacity * 4).asIntBuffer();
+      this.noFullSweepBeforeNanos = nowNanos;
+    }
+
+    synchronized int size() {
+      return size;
+    }
+
+    synchronized boolean store(byte[] id, int hash, byte type, long expiryNanos, int appIdIndex,
+        byte[] accountName, byte[] challenge, byte[] publicKey, byte[] keyHandle, long now) {
+      sweep(SLOTS_SWEPT_PER_STORE, now);
+      int bucket = find(id, hash);
+      int slot;
+      if (bucket >= 0) {
+        // the same session id again: the newer session replaces the older one
+        slot = index.get(bucket) - 1;
+      } else {
+        slot = allocate(now);
+        if (slot < 0) {
+          return false;
+        }
+        insert(slot, hash);
+        size++;
+      }
+      ByteBuffer slab = slabOf(slot);
+      int base = baseOf(slot);
+      slab.put(base + TYPE, type);
+      slab.putLong(base + EXPIRY_NANOS, expiryNanos);
+      slab.putInt(base + APP_ID_INDEX, appIdIndex);
+      slab.putInt(base + HASH, hash);
+      SESSION_ID.put(slab, base, id);
+      ACCOUNT_NAME.put(slab, base, accountName);
+      CHALLENGE.put(slab, base, challenge);
+      PUBLIC_KEY.put(slab, base, publicKey);
+      KEY_HANDLE.put(slab, base, keyHandle);
+      return true;
+    }
+
+    synchronized EnrollSessionData read(byte[] id, int hash, boolean take, boolean signOnly,
+        long now) {
+      int bucket = find(id, hash);
+      if (bucket < 0) {
+        return null;
+      }
+      int slot = index.get(bucket) - 1;
+      ByteBuffer slab = slabOf(slot);
+      int base = baseOf(slot);
+      if (now - slab.getLong(base + EXPIRY_NANOS) >= 0) {
+        remove(bucket, slot);
+        expiredSessions.incrementAndGet();
+        return null;
+      }
+      byte type = slab.get(base + TYPE);
+      if (signOnly && type != SIGN) {
+        return null;
+      }
+      String accountName = new String(ACCOUNT_NAME.get(slab, base), Charsets.UTF_8);
+      String appId = appIds.get(slab.getInt(base + APP_ID_INDEX));
+      byte[] challenge = CHALLENGE.get(slab, base);
+      EnrollSessionData sessionData = (type == SIGN)
+          ? new SignSessionData(accountName, appId, challenge, PUBLIC_KEY.get(slab, base),
+              KEY_HANDLE.get(slab, base))
+          : new EnrollSessionData(accountName, appId, challenge);
+      if (take) {
+        remove(bucket, slot);
+      }
+      return sessionData;
+    }
+
+    /** Returns the bucket of the session with the given id, or -1. */
+    private int find(byte[] id, int hash) {
+      for (int bucket = hash & indexMask; ; bucket = (bucket + 1) & indexMask) {
+        int entry = index.get(bucket);
+        if (entry == 0) {
+          return -1;
+        }
+        int slot = entry - 1;
+        ByteBuffer slab = slabOf(slot);
+        int base = baseOf(slot);
+        if (slab.getInt(base + HASH) == hash && SESSION_ID.matches(slab, base, id)) {
+          return bucket;
+        }
+      }
+    }
+
+    private void insert(int slot, int hash) {
+      int bucket = hash & indexMask;
+      while (index.get(bucket) != 0) {
+        bucket = (bucket + 1) & indexMask;
+      }
+      index.put(bucket, slot + 1);
+    }
+
+    private void remove(int bucket, int slot) {
+      // backward shift: move later entries of the probe sequence up into the hole, unless the
+      // hole lies before their home bucket
+      int hole = bucket;
+      for (int next = (hole + 1) & indexMask; ; next = (next + 1) & indexMask) {
+        int entry = index.get(next);
+        if (entry == 0) {
+          break;
+        }
+        int home = hashOf(entry - 1) & indexMask;
+        if (((next - home) & indexMask) >= ((next - hole) & indexMask)) {
+          index.put(hole, entry);
+          hole = next;
+        }
+      }
+      index.put(hole, 0);
+
+      slabOf(slot).put(baseOf(slot) + TYPE, FREE);
+      freeSlots.put(freeSlotCount++, slot);
+      size--;
+    }
+
+    private int allocate(long now) {
+      if (freeSlotCount == 0 && usedSlots == capacity && now - noFullSweepBeforeNanos >= 0) {
+        // full: free whatever has expired before giving up. Sessions stored later expire later,
+        // so until the earliest of the ones left expires another full sweep would be wasted.
+        noFullSweepBeforeNanos = sweep(capacity, now);
+        fullSweeps.incrementAndGet();
+      }
+      if (freeSlotCount > 0) {
+        return freeSlots.get(--freeSlotCount);
+      }
+      if (usedSlots < capacity) {
+        int slot = usedSlots++;
+        if (slabs[slot / slotsPerSlab] == null) {
+          slabs[slot / slotsPerSlab] = ByteBuffer.allocateDirect(slotsPerSlab * SLOT_SIZE);
+        }
+        return slot;
+      }
+      return -1;
+    }
+
+    /**
+     * Moves the clock hand on by {@code slots} slots, freeing the expired sessions it passes.
+     * Returns the earliest expiry of the sessions it passed and left in place.
+     */
+    private long sweep(int slots, long now) {
+      long earliestExpiryNanos = now + sessionTtlNanos;
+      for (int i = 0; i < slots && usedSlots > 0; i++) {
+        clockHand = (clockHand + 1) % usedSlots;
+        ByteBuffer slab = slabOf(clockHand);
+        int base = baseOf(clockHand);
+        if (slab.get(base + TYPE) != FREE && now - slab.getLong(base + EXPIRY_NANOS) >= 0) {
+          int bucket = hashOf(clockHand) & indexMask;
+          while (index.get(bucket) != clockHand + 1) {
+            bucket = (bucket + 1) & indexMask;
+          }
+          remove(bucket, clockHand);
+          expiredSessions.incrementAndGet();
+        } else if (slab.get(base + TYPE) != FREE
+            && slab.getLong(base + EXPIRY_NANOS) - earliestExpiryNanos < 0) {
+          earliestExpiryNanos = slab.getLong(base + EXPIRY_NANOS);
+        }
+      }
+      return earliestExpiryNanos;
+    }
+
+    private int hashOf(int slot) {
+      return slabOf(slot).getInt(baseOf(slot) + HASH);
+    }
+
+    private ByteBuffer slabOf(int slot) {
+      return slabs[slot / slotsPerSlab];
+    }
+
+    private int baseOf(int slot) {
+      return (slot % slotsPerSlab) * SLOT_SIZE;
+    }
+  }
+}
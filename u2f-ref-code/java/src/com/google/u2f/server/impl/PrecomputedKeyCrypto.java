@@ -0,0 +1,287 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECParameterSpec;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.codec.binary.Hex;
+import org.bouncycastle.math.ec.ECCurve;
+import org.bouncycastle.math.ec.ECPoint;
+import org.bouncycastle.math.ec.WNafUtil;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableMap;
+import com.google.u2f.U2FException;
+import com.google.u2f.server.Crypto;
+
+/**
+ * {@link Crypto} that verifies signatures of frequently used P-256 keys against precomputed
+ * point tables, and hands everything else to a delegate.
+ *
+ * <p>ECDSA verification computes {@code u1*G + u2*Q}. For a key that has been verified
+ * {@code admissionThreshold} times, the odd multiples of its point Q are precomputed once and kept
+ * in an LRU bounded by a memory budget, next to a wider table for the generator G. Verification
+ * then interleaves the window-NAF expansions of u1 and u2 over a single doubling chain, using only
+ * table lookups and additions, instead of building the tables per call.
+ *
+ * <p>Certificates, keys on other curves, keys that aren't hot (yet) and signatures that aren't
+ * strict DER all go through the delegate.
+ */
+public class PrecomputedKeyCrypto implements Crypto {
+  public static final long DEFAULT_MEMORY_BUDGET_BYTES = 16L * 1024 * 1024;
+  public static final int DEFAULT_ADMISSION_THRESHOLD = 3;
+
+  static final int GENERATOR_WINDOW = 8;
+  static final int KEY_WINDOW = 6;
+  // rough heap footprint of one affine P-256 point (two BigInteger-backed field elements)
+  private static final int BYTES_PER_POINT = 200;
+
+  private static final ECCurve CURVE = BouncyCastleCrypto.P256.getCurve();
+  private static final BigInteger N = BouncyCastleCrypto.P256.getN();
+  private static final PointTable GENERATOR_TABLE =
+      new PointTable(BouncyCastleCrypto.P256.getG(), GENERATOR_WINDOW);
+
+  private final Crypto delegate;
+  private final int admissionThreshold;
+  private final Cache<java.security.spec.ECPoint, AtomicInteger> useCounts;
+  private final Cache<java.security.spec.ECPoint, HotKey> hotKeys;
+
+  public PrecomputedKeyCrypto(Crypto delegate) {
+    this(delegate, DEFAULT_MEMORY_BUDGET_BYTES, DEFAULT_ADMISSION_THRESHOLD);
+  }
+
+  /**
+   * @param memoryBudgetBytes approximate heap to spend on point tables of hot keys
+   * @param admissionThreshold number of verifications after which a key gets a point table
+   */
+  public PrecomputedKeyCrypto(Crypto delegate, long memoryBudgetBytes, int admissionThreshold) {
+    this.delegate = delegate;
+    this.admissionThreshold = admissionThreshold;
+    this.hotKeys = CacheBuilder.newBuilder()
+        .maximumWeight(memoryBudgetBytes)
+        .weigher(new Weigher<java.security.spec.ECPoint, HotKey>() {
+          @Override
+          public int weigh(java.security.spec.ECPoint key, HotKey value) {
+            return value.table.size() * BYTES_PER_POINT;
+          }
+        })
+        .recordStats()
+        .build();
+    // keys that have been seen, but not often enough to be admitted yet
+    this.useCounts = CacheBuilder.newBuilder()
+        .maximumSize(Math.max(memoryBudgetBytes / (PointTable.size(KEY_WINDOW) * BYTES_PER_POINT),
+            1) * 4)
+        .build();
+  }
+
+  @Override
+  public boolean verifySignature(X509Certificate attestationCertificate, byte[] signedBytes,
+      byte[] signature) throws U2FException {
+    return delegate.verifySignature(attestationCertificate, signedBytes, signature);
+  }
+
+  @Override
+  public boolean verifySignature(PublicKey publicKey, byte[] signedBytes, byte[] signature)
+      throws U2FException {
+    HotKey hotKey = getHotKey(publicKey);
+    if (hotKey != null) {
+      BigInteger[] rs = LightweightCrypto.decodeStrictDerSignature(signature, 0, signature.length);
+      if (rs != null) {
+        hotKey.hits.incrementAndGet();
+        return verify(hotKey.table, delegate.computeSha256(signedBytes), rs[0], rs[1]);
+      }
+    }
+    return delegate.verifySignature(publicKey, signedBytes, signature);
+  }
+
+  @Override
+  public boolean verifySignature(X509Certificate attestationCertificate, ByteBuffer signedBytes,
+      ByteBuffer signature) throws U2FException {
+    return delegate.verifySignature(attestationCertificate, signedBytes, signature);
+  }
+
+  @Override
+  public boolean verifySignature(PublicKey publicKey, ByteBuffer signedBytes,
+      ByteBuffer signature) throws U2FException {
+    HotKey hotKey = getHotKey(publicKey);
+    if (hotKey != null) {
+      // the DER parser wants an array, but a signature is only ~72 bytes
+      byte[] signatureBytes = new byte[signature.remaining()];
+      signature.duplicate().get(signatureBytes);
+      BigInteger[] rs =
+          LightweightCrypto.decodeStrictDerSignature(signatureBytes, 0, signatureBytes.length);
+      if (rs != null) {
+        hotKey.hits.incrementAndGet();
+        return verify(hotKey.table, delegate.computeSha256(signedBytes), rs[0], rs[1]);
+      }
+    }
+    return delegate.verifySignature(publicKey, signedBytes, signature);
+  }
+
+  @Override
+  public PublicKey decodePublicKey(byte[] encodedPublicKey) throws U2FException {
+    return delegate.decodePublicKey(encodedPublicKey);
+  }
+
+  @Override
+  public byte[] computeSha256(byte[] bytes) throws U2FException {
+    return delegate.computeSha256(bytes);
+  }
+
+  @Override
+  public byte[] computeSha256(byte[] bytes, int offset, int length) throws U2FException {
+    return delegate.computeSha256(bytes, offset, length);
+  }
+
+  @Override
+  public byte[] computeSha256(ByteBuffer bytes) throws U2FException {
+    return delegate.computeSha256(bytes);
+  }
+
+  /** Number of verifications served from its point table so far, by hex-encoded public key. */
+  public Map<String, Long> getHitCounts() {
+    ImmutableMap.Builder<String, Long> hitCounts = ImmutableMap.builder();
+    for (HotKey hotKey : hotKeys.asMap().values()) {
+      hitCounts.put(hotKey.name, hotKey.hits.get());
+    }
+    return hitCounts.build();
+  }
+
+  /** Lookups, admissions and evictions of hot keys. */
+  public CacheStats stats() {
+    return hotKeys.stats();
+  }
+
+  /** Returns the hot key entry for {@code publicKey}, admitting it if it's now used enough. */
+  private HotKey getHotKey(PublicKey publicKey) throws U2FException {
+    if (!(publicKey instanceof ECPublicKey) || !isP256(((ECPublicKey) publicKey).getParams())) {
+      return null;
+    }
+    java.security.spec.ECPoint w = ((ECPublicKey) publicKey).getW();
+    HotKey hotKey = hotKeys.getIfPresent(w);
+    if (hotKey != null) {
+      return hotKey;
+    }
+    AtomicInteger useCount = useCounts.asMap().putIfAbsent(w, new AtomicInteger(1));
+    int uses = (useCount == null) ? 1 : useCount.incrementAndGet();
+    if (uses < admissionThreshold) {
+      return null;
+    }
+    useCounts.invalidate(w);
+    ECPoint q = CURVE.createPoint(w.getAffineX(), w.getAffineY());
+    BouncyCastleCrypto.checkValidPoint(q);
+    hotKey = new HotKey(Hex.encodeHexString(q.getEncoded()), new PointTable(q, KEY_WINDOW));
+    hotKeys.put(w, hotKey);
+    return hotKey;
+  }
+
+  static boolean isP256(ECParameterSpec params) {
+    return N.equals(params.getOrder())
+        && BouncyCastleCrypto.P256.getG().getAffineXCoord().toBigInteger()
+            .equals(params.getGenerator().getAffineX())
+        && BouncyCastleCrypto.P256.getG().getAffineYCoord().toBigInteger()
+            .equals(params.getGenerator().getAffineY())
+        && CURVE.getFieldSize() == params.getCurve().getField().getFieldSize();
+  }
+
+  /** ECDSA verification of {@code (r, s)} over the SHA-256 {@code hash}, for P-256. */
+  static boolean verify(PointTable keyTable, byte[] hash, BigInteger r, BigInteger s) {
+    if (r.signum() <= 0 || r.compareTo(N) >= 0 || s.signum() <= 0 || s.compareTo(N) >= 0) {
+      return false;
+    }
+    // the hash is exactly as long as the order, so it needs no truncation
+    BigInteger e = new BigInteger(1, hash);
+    BigInteger c = s.modInverse(N);
+    BigInteger u1 = e.multiply(c).mod(N);
+    BigInteger u2 = r.multiply(c).mod(N);
+
+    ECPoint point = sumOfMultiplies(GENERATOR_TABLE, u1, keyTable, u2);
+    if (point.isInfinity()) {
+      return false;
+    }
+    return point.normalize().getAffineXCoord().toBigInteger().mod(N).equals(r);
+  }
+
+  /** Computes {@code a*A + b*B} by interleaving the window NAFs of a and b. */
+  static ECPoint sumOfMultiplies(PointTable tableA, BigInteger a, PointTable tableB,
+      BigInteger b) {
+    byte[] nafA = WNafUtil.generateWindowNaf(tableA.window, a);
+    byte[] nafB = WNafUtil.generateWindowNaf(tableB.window, b);
+    ECPoint result = CURVE.getInfinity();
+    for (int i = Math.max(nafA.length, nafB.length) - 1; i >= 0; i--) {
+      result = result.twice();
+      if (i < nafA.length && nafA[i] != 0) {
+        result = result.add(tableA.get(nafA[i]));
+      }
+      if (i < nafB.length && nafB[i] != 0) {
+        result = result.add(tableB.get(nafB[i]));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * The odd multiples P, 3P, ..., (2^(w-1) - 1)P of a point and their negations, in affine
+   * coordinates, as needed for a width-w NAF.
+   */
+  static final class PointTable {
+    final int window;
+    private final ECPoint[] positive;
+    private final ECPoint[] negative;
+
+    PointTable(ECPoint point, int window) {
+      this.window = window;
+      int size = size(window);
+      positive = new ECPoint[size];
+      negative = new ECPoint[size];
+      positive[0] = point.normalize();
+      ECPoint twice = point.twice();
+      for (int i = 1; i < size; i++) {
+        positive[i] = positive[i - 1].add(twice);
+      }
+      CURVE.normalizeAll(positive);
+      for (int i = 0; i < size; i++) {
+        negative[i] = positive[i].negate();
+      }
+    }
+
+    static int size(int window) {
+      return 1 << (window - 2);
+    }
+
+    int size() {
+      return positive.length + negative.length;
+    }
+
+    /** Returns {@code digit * P} for an odd NAF digit. */
+    ECPoint get(int digit) {
+      return (digit > 0) ? positive[digit >>> 1] : negative[(-digit) >>> 1];
+    }
+  }
+
+  private static final class HotKey {
+    final String name;
+    final PointTable table;
+    final AtomicLong hits = new AtomicLong();
+
+    HotKey(String name, PointTable table) {
+      this.name = name;
+      this.table = table;
+    }
+  }
+}
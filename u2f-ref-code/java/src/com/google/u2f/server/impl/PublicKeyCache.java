@@ -0,0 +1,71 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.u2f.U2FException;
+import com.google.u2f.server.Crypto;
+
+/**
+ * Bounded, thread-safe cache of decoded user public keys, keyed by the raw (X9.62) encoding
+ * stored in {@link com.google.u2f.server.data.SecurityKeyData}. Repeat authentications with the
+ * same security key skip point decoding entirely.
+ */
+public class PublicKeyCache {
+  public static final long DEFAULT_MAXIMUM_SIZE = 10000;
+
+  private final Crypto crypto;
+  private final Cache<ByteBuffer, PublicKey> cache;
+
+  public PublicKeyCache(Crypto crypto) {
+    this(crypto, DEFAULT_MAXIMUM_SIZE);
+  }
+
+  public PublicKeyCache(Crypto crypto, long maximumSize) {
+    this.crypto = crypto;
+    this.cache = CacheBuilder.newBuilder()
+        .maximumSize(maximumSize)
+        .recordStats()
+        .build();
+  }
+
+  /**
+   * Returns the decoded form of {@code encodedPublicKey}, decoding it (and remembering the
+   * result) only if it isn't already cached.
+   */
+  public PublicKey getPublicKey(byte[] encodedPublicKey) throws U2FException {
+    PublicKey publicKey = cache.getIfPresent(ByteBuffer.wrap(encodedPublicKey));
+    if (publicKey == null) {
+      publicKey = crypto.decodePublicKey(encodedPublicKey);
+      // copy the key bytes, so that callers can't change the cache entry underneath us
+      cache.put(ByteBuffer.wrap(encodedPublicKey.clone()), publicKey);
+    }
+    return publicKey;
+  }
+
+  public void invalidate(byte[] encodedPublicKey) {
+    cache.invalidate(ByteBuffer.wrap(encodedPublicKey));
+  }
+
+  public void invalidateAll() {
+    cache.invalidateAll();
+  }
+
+  public long size() {
+    return cache.size();
+  }
+
+  /** Hit, miss and eviction counts since this cache was created. */
+  public CacheStats stats() {
+    return cache.stats();
+  }
+}
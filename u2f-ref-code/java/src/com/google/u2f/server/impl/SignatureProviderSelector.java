@@ -0,0 +1,209 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.security.Provider;
+import java.security.PublicKey;
+import java.security.Security;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.u2f.EventLog;
+import com.google.u2f.U2FException;
+
+/**
+ * Picks the JCA provider that {@link BouncyCastleCrypto} uses for SHA256withECDSA verification.
+ *
+ * <p>Every installed provider offering SHA256withECDSA is checked against a known-answer vector
+ * (a genuine U2F authentication signature must verify, and the same signature over altered bytes
+ * must not), the conforming ones are timed in a short micro-benchmark, and the fastest one wins.
+ * Setting the {@value #PROVIDER_PROPERTY} system property to a provider name skips the benchmark
+ * and uses that provider, provided that it passes the known-answer check.
+ */
+public class SignatureProviderSelector {
+  private static final EventLog Log = EventLog.getLog(SignatureProviderSelector.class);
+
+  /** System property naming the provider to use instead of benchmarking. */
+  public static final String PROVIDER_PROPERTY = "com.google.u2f.server.ecdsaProvider";
+
+  static final String SIGNATURE_ALGORITHM = "SHA256withECDSA";
+  static final int DEFAULT_ITERATIONS = 200;
+
+  // A U2F authentication signature: user public key, signed bytes (appId hash, user presence,
+  // counter, client data hash) and DER signature.
+  private static final byte[] KAT_PUBLIC_KEY = decodeHex(
+      "04d368f1b665bade3c33a20f1e429c7750d5033660c019119d29aa4ba7abc04a"
+      + "a7c80a46bbe11ca8cb5674d74f31f8a903f6bad105fb6ab74aefef4db8b0025e1d");
+  private static final byte[] KAT_SIGNED_BYTES = decodeHex(
+      "4b0be934baebb5d12d26011b69227fa5e86df94e7d94aa2949a89f2d493992ca"
+      + "0100000001ccd6ee2e47baef244d49a222db496bad0ef5b6f93aa7cc4d30c482"
+      + "1b3b9dbc57");
+  private static final byte[] KAT_SIGNATURE = decodeHex(
+      "304402204b5f0cd17534cedd8c34ee09570ef542a353df4436030ce43d406de8"
+      + "70b847780220267bb998fac9b7266eb60e7cb0b5eabdfd5ba9614f53c7b22272"
+      + "ec10047a923f");
+
+  private final List<Provider> candidates;
+  private final int iterations;
+
+  public SignatureProviderSelector() {
+    this(getInstalledProviders(), DEFAULT_ITERATIONS);
+  }
+
+  /**
+   * @param candidates the providers to choose from
+   * @param iterations number of verifications timed per provider (after as many for warm-up)
+   */
+  public SignatureProviderSelector(List<Provider> candidates, int iterations) {
+    this.candidates = ImmutableList.copyOf(candidates);
+    this.iterations = iterations;
+  }
+
+  /** Chooses a provider, honoring the {@value #PROVIDER_PROPERTY} override if it's set. */
+  public Selection select() throws U2FException {
+    return select(System.getProperty(PROVIDER_PROPERTY));
+  }
+
+  /**
+   * Chooses a provider.
+   *
+   * @param providerName name of the provider to use without benchmarking, or null to pick the
+   *     fastest conforming candidate
+   */
+  public Selection select(String providerName) throws U2FException {
+    Selection selection = (providerName != null) ? override(providerName) : benchmark();
+    Log.event("signatureProviderSelected", "provider", selection.getProvider().getName(),
+        "override", selection.isOverride());
+    return selection;
+  }
+
+  private Selection override(String providerName) throws U2FException {
+    for (Provider provider : candidates) {
+      if (provider.getName().equals(providerName)) {
+        BouncyCastleCrypto crypto = new BouncyCastleCrypto(provider);
+        if (!conforms(crypto)) {
+          throw new U2FException("Signature provider " + providerName
+              + " fails the known-answer test");
+        }
+        return new Selection(provider, true, ImmutableMap.<String, Long>of());
+      }
+    }
+    throw new U2FException("No signature provider named " + providerName);
+  }
+
+  private Selection benchmark() throws U2FException {
+    Map<String, Long> nanosPerVerification = Maps.newLinkedHashMap();
+    Provider fastest = null;
+    long fastestNanos = Long.MAX_VALUE;
+    for (Provider provider : candidates) {
+      BouncyCastleCrypto crypto = new BouncyCastleCrypto(provider);
+      if (!conforms(crypto)) {
+        Log.warning("signature provider " + provider.getName() + " fails the known-answer test");
+        continue;
+      }
+      long nanos = time(crypto);
+      nanosPerVerification.put(provider.getName(), nanos);
+      if (nanos < fastestNanos) {
+        fastest = provider;
+        fastestNanos = nanos;
+      }
+    }
+    if (fastest == null) {
+      throw new U2FException("No conforming " + SIGNATURE_ALGORITHM + " provider");
+    }
+    return new Selection(fastest, false, nanosPerVerification);
+  }
+
+  private static boolean conforms(BouncyCastleCrypto crypto) {
+    try {
+      PublicKey publicKey = crypto.decodePublicKey(KAT_PUBLIC_KEY);
+      byte[] alteredBytes = KAT_SIGNED_BYTES.clone();
+      alteredBytes[alteredBytes.length - 1] ^= 1;
+      return crypto.verifySignature(publicKey, KAT_SIGNED_BYTES, KAT_SIGNATURE)
+          && !crypto.verifySignature(publicKey, alteredBytes, KAT_SIGNATURE);
+    } catch (U2FException e) {
+      return false;
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+
+  /** Returns the average time of one verification, in nanoseconds. */
+  private long time(BouncyCastleCrypto crypto) throws U2FException {
+    PublicKey publicKey = crypto.decodePublicKey(KAT_PUBLIC_KEY);
+    for (int i = 0; i < iterations; i++) {
+      crypto.verifySignature(publicKey, KAT_SIGNED_BYTES, KAT_SIGNATURE);
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < iterations; i++) {
+      crypto.verifySignature(publicKey, KAT_SIGNED_BYTES, KAT_SIGNATURE);
+    }
+    return (System.nanoTime() - start) / Math.max(iterations, 1);
+  }
+
+  private static List<Provider> getInstalledProviders() {
+    // make sure Bouncy Castle is registered
+    new BouncyCastleCrypto();
+    List<Provider> providers = Lists.newArrayList();
+    for (Provider provider : Security.getProviders()) {
+      if (provider.getService("Signature", SIGNATURE_ALGORITHM) != null) {
+        providers.add(provider);
+      }
+    }
+    return providers;
+  }
+
+  private static byte[] decodeHex(String hex) {
+    try {
+      return Hex.decodeHex(hex.toCharArray());
+    } catch (DecoderException e) {
+      throw new IllegalArgumentException(e);
+    }
+  }
+
+  /** The outcome of {@link SignatureProviderSelector#select}. */
+  public static final class Selection {
+    private final Provider provider;
+    private final boolean override;
+    private final Map<String, Long> nanosPerVerification;
+
+    Selection(Provider provider, boolean override, Map<String, Long> nanosPerVerification) {
+      this.provider = provider;
+      this.override = override;
+      this.nanosPerVerification = ImmutableMap.copyOf(nanosPerVerification);
+    }
+
+    public Provider getProvider() {
+      return provider;
+    }
+
+    /** Whether the provider was configured explicitly rather than benchmarked. */
+    public boolean isOverride() {
+      return override;
+    }
+
+    /**
+     * Measured time of one verification for each conforming provider, by provider name. Empty
+     * for an override.
+     */
+    public Map<String, Long> getNanosPerVerification() {
+      return nanosPerVerification;
+    }
+
+    /** Returns a {@link BouncyCastleCrypto} verifying signatures with the selected provider. */
+    public BouncyCastleCrypto newCrypto() {
+      return new BouncyCastleCrypto(provider);
+    }
+  }
+}
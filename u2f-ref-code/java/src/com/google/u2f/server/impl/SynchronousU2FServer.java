@@ -0,0 +1,91 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.u2f.U2FException;
+import com.google.u2f.server.AsyncU2FServer;
+import com.google.u2f.server.U2FServer;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.messages.MultiKeySignRequest;
+import com.google.u2f.server.messages.RegistrationRequest;
+import com.google.u2f.server.messages.RegistrationResponse;
+import com.google.u2f.server.messages.SignRequest;
+import com.google.u2f.server.messages.SignResponse;
+import com.google.u2f.server.messages.SignResult;
+
+/**
+ * Blocking {@link U2FServer} view of an {@link AsyncU2FServer}, for callers that still expect the
+ * synchronous API: each method waits for the corresponding future and rethrows its
+ * {@link U2FException}.
+ */
+public class SynchronousU2FServer implements U2FServer {
+
+  private final AsyncU2FServer server;
+
+  public SynchronousU2FServer(AsyncU2FServer server) {
+    this.server = server;
+  }
+
+  @Override
+  public RegistrationRequest getRegistrationRequest(String accountName, String appId)
+      throws U2FException {
+    return get(server.getRegistrationRequest(accountName, appId));
+  }
+
+  @Override
+  public SecurityKeyData processRegistrationResponse(RegistrationResponse registrationResponse,
+      long currentTimeInMillis) throws U2FException {
+    return get(server.processRegistrationResponse(registrationResponse, currentTimeInMillis));
+  }
+
+  @Override
+  public List<SignRequest> getSignRequest(String accountName, String appId) throws U2FException {
+    return get(server.getSignRequest(accountName, appId));
+  }
+
+  @Override
+  public MultiKeySignRequest getMultiKeySignRequest(String accountName, String appId)
+      throws U2FException {
+    return get(server.getMultiKeySignRequest(accountName, appId));
+  }
+
+  @Override
+  public SecurityKeyData processSignResponse(SignResponse signResponse) throws U2FException {
+    return get(server.processSignResponse(signResponse));
+  }
+
+  @Override
+  public List<SignResult> processSignResponses(List<SignResponse> signResponses) {
+    return Futures.getUnchecked(server.processSignResponses(signResponses));
+  }
+
+  @Override
+  public List<SecurityKeyData> getAllSecurityKeys(String accountName) {
+    return Futures.getUnchecked(server.getAllSecurityKeys(accountName));
+  }
+
+  @Override
+  public void removeSecurityKey(String accountName, byte[] publicKey) throws U2FException {
+    get(server.removeSecurityKey(accountName, publicKey));
+  }
+
+  private static <T> T get(Future<T> future) throws U2FException {
+    try {
+      return Uninterruptibles.getUninterruptibly(future);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), U2FException.class);
+      throw new U2FException("Error when processing request", e.getCause());
+    }
+  }
+}
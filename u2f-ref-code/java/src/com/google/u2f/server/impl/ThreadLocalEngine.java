@@ -0,0 +1,37 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.security.GeneralSecurityException;
+
+/**
+ * Keeps one JCA engine ({@link java.security.Signature}, {@link java.security.MessageDigest},
+ * ...) per thread, so that the synchronized provider lookup of {@code getInstance} only happens
+ * once per thread rather than once per call.
+ *
+ * <p>Callers must {@link #discard} the engine if an operation on it fails, since it may be left
+ * half-way through an operation; the next {@link #get} then creates a fresh one.
+ */
+abstract class ThreadLocalEngine<T> {
+  private final ThreadLocal<T> engines = new ThreadLocal<T>();
+
+  /** Creates a new, uninitialised engine. */
+  protected abstract T create() throws GeneralSecurityException;
+
+  T get() throws GeneralSecurityException {
+    T engine = engines.get();
+    if (engine == null) {
+      engine = create();
+      engines.set(engine);
+    }
+    return engine;
+  }
+
+  void discard() {
+    engines.remove();
+  }
+}
@@ -0,0 +1,105 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import java.util.List;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+/**
+ * Hashed timer wheel. Items are scheduled to expire at a deadline, and handed back by
+ * {@link #advance(long)} once it has passed.
+ *
+ * <p>Time is cut into ticks of {@code tickNanos}, and an item goes in the slot of the tick its
+ * deadline falls in. Scheduling is O(1). Advancing visits only the slots of the ticks that went by,
+ * so each item costs O(1) to expire, however many are pending. Items more than one turn of the
+ * wheel away share a slot with nearer ones and are skipped until their turn comes.
+ *
+ * <p>Not thread-safe.
+ */
+final class TimerWheel<T> {
+  private final long tickNanos;
+  private final long originNanos;
+  private final List<List<Entry<T>>> slots;
+  private long currentTick;
+  private int size;
+
+  TimerWheel(long tickNanos, int slotCount, long nowNanos) {
+    Preconditions.checkArgument(tickNanos > 0, "tickNanos must be positive");
+    Preconditions.checkArgument(slotCount > 0, "slotCount must be positive");
+    this.tickNanos = tickNanos;
+    this.originNanos = nowNanos;
+    this.slots = Lists.newArrayListWithCapacity(slotCount);
+    for (int i = 0; i < slotCount; i++) {
+      slots.add(Lists.<Entry<T>>newArrayList());
+    }
+  }
+
+  /** Schedules {@code item} to expire once the clock reaches {@code deadlineNanos}. */
+  void schedule(T item, long deadlineNanos) {
+    long elapsed = deadlineNanos - originNanos;
+    // the first tick at or after the deadline, and never one that has already been visited
+    long tick = Math.max(currentTick + 1, (elapsed + tickNanos - 1) / tickNanos);
+    slots.get(slotOf(tick)).add(new Entry<T>(item, tick));
+    size++;
+  }
+
+  /** Moves the wheel to {@code nowNanos}, and returns the items that expired on the way. */
+  List<T> advance(long nowNanos) {
+    long targetTick = (nowNanos - originNanos) / tickNanos;
+    List<T> expired = Lists.newArrayList();
+    // after a full turn every slot has been visited, so a long pause costs no more than that
+    long ticks = Math.min(targetTick - currentTick, slots.size());
+    for (long i = 1; i <= ticks; i++) {
+      List<Entry<T>> slot = slots.get(slotOf(currentTick + i));
+      int kept = 0;
+      for (int j = 0; j < slot.size(); j++) {
+        Entry<T> entry = slot.get(j);
+        if (entry.tick <= targetTick) {
+          expired.add(entry.item);
+        } else {
+          slot.set(kept++, entry);
+        }
+      }
+      slot.subList(kept, slot.size()).clear();
+    }
+    currentTick = Math.max(currentTick, targetTick);
+    size -= expired.size();
+    return expired;
+  }
+
+  /** The number of items scheduled and not yet handed back. */
+  int size() {
+    return size;
+  }
+
+  /** The items scheduled and not yet handed back, in no particular order. */
+  List<T> items() {
+    List<T> items = Lists.newArrayListWithCapacity(size);
+    for (List<Entry<T>> slot : slots) {
+      for (Entry<T> entry : slot) {
+        items.add(entry.item);
+      }
+    }
+    return items;
+  }
+
+  private int slotOf(long tick) {
+    return (int) (tick % slots.size());
+  }
+
+  private static final class Entry<T> {
+    final T item;
+    final long tick;
+
+    Entry(T item, long tick) {
+      this.item = item;
+      this.tick = tick;
+    }
+  }
+}
@@ -6,71 +6,114 @@
 
 package com.google.u2f.server.impl;
 
+import static com.google.u2f.server.VerificationException.Stage.CERTIFICATE;
+import static com.google.u2f.server.VerificationException.Stage.COUNTER;
+import static com.google.u2f.server.VerificationException.Stage.SESSION;
+import static com.google.u2f.server.VerificationException.Stage.SIGNATURE;
+
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
 import java.security.cert.CertificateEncodingException;
 import java.security.cert.X509Certificate;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.logging.Logger;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import org.apache.commons.codec.binary.Base64;
-import org.apache.commons.codec.binary.Hex;
 
+import com.google.common.base.Charsets;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.u2f.EventLog;
 import com.google.u2f.U2FConsts;
 import com.google.u2f.U2FException;
 import com.google.u2f.codec.RawMessageCodec;
 import com.google.u2f.key.UserPresenceVerifier;
-import com.google.u2f.key.messages.AuthenticateResponse;
 import com.google.u2f.key.messages.RegisterResponse;
 import com.google.u2f.server.ChallengeGenerator;
 import com.google.u2f.server.Crypto;
 import com.google.u2f.server.DataStore;
 import com.google.u2f.server.U2FServer;
+import com.google.u2f.server.VerificationException;
 import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.MultiKeySignSessionData;
 import com.google.u2f.server.data.SecurityKeyData;
 import com.google.u2f.server.data.SignSessionData;
+import com.google.u2f.server.impl.AttestationCertificateCache.AttestationCertificate;
+import com.google.u2f.server.messages.MultiKeySignRequest;
+import com.google.u2f.server.messages.RegisteredKey;
 import com.google.u2f.server.messages.RegistrationRequest;
 import com.google.u2f.server.messages.RegistrationResponse;
 import com.google.u2f.server.messages.SignRequest;
 import com.google.u2f.server.messages.SignResponse;
+import com.google.u2f.server.messages.SignResult;
 
 public class U2FServerReferenceImpl implements U2FServer {
-  
-  private static final String TYPE_PARAM = "typ";
-  private static final String CHALLENGE_PARAM = "challenge";
-  private static final String ORIGIN_PARAM = "origin";
-
-  // TODO: use these for channel id checks in verifyBrowserData
-  @SuppressWarnings("unused")
-  private static final String CHANNEL_ID_PARAM = "cid_pubkey";
-  @SuppressWarnings("unused")
-  private static final String UNUSED_CHANNEL_ID = "";
-  
-  private static final Logger Log = Logger.getLogger(U2FServerReferenceImpl.class.getName());
+
+  private static final EventLog Log = EventLog.getLog(U2FServerReferenceImpl.class);
 
   private final ChallengeGenerator challengeGenerator;
   private final DataStore dataStore;
   private final Crypto cryto;
   private final Set<String> allowedOrigins;
+  private final PublicKeyCache publicKeyCache;
+  private final AttestationCertificateCache attestationCertificates;
+  private final ExecutorService verificationExecutor;
+  private final ConcurrentMap<String, AppIdContext> appIdContexts =
+      new ConcurrentHashMap<String, AppIdContext>();
 
   public U2FServerReferenceImpl(ChallengeGenerator challengeGenerator,
       DataStore dataStore, Crypto cryto, Set<String> origins) {
+    this(challengeGenerator, dataStore, cryto, origins, new PublicKeyCache(cryto));
+  }
+
+  public U2FServerReferenceImpl(ChallengeGenerator challengeGenerator,
+      DataStore dataStore, Crypto cryto, Set<String> origins, PublicKeyCache publicKeyCache) {
+    this(challengeGenerator, dataStore, cryto, origins, publicKeyCache,
+        MoreExecutors.sameThreadExecutor());
+  }
+
+  /**
+   * @param verificationExecutor runs the signature checks of {@link #processSignResponses}. Pass
+   *     a multi-threaded executor (such as a fork/join pool) to spread a batch across cores.
+   */
+  public U2FServerReferenceImpl(ChallengeGenerator challengeGenerator,
+      DataStore dataStore, Crypto cryto, Set<String> origins, PublicKeyCache publicKeyCache,
+      ExecutorService verificationExecutor) {
+    this(challengeGenerator, dataStore, cryto, origins, publicKeyCache, verificationExecutor,
+        new AttestationCertificateCache());
+  }
+
+  public U2FServerReferenceImpl(ChallengeGenerator challengeGenerator,
+      DataStore dataStore, Crypto cryto, Set<String> origins, PublicKeyCache publicKeyCache,
+      ExecutorService verificationExecutor, AttestationCertificateCache attestationCertificates) {
     this.challengeGenerator = challengeGenerator;
     this.dataStore = dataStore;
     this.cryto = cryto;
     this.allowedOrigins = canonicalizeOrigins(origins);
+    this.publicKeyCache = publicKeyCache;
+    this.verificationExecutor = verificationExecutor;
+    this.attestationCertificates = attestationCertificates;
   }
 
   @Override
   public RegistrationRequest getRegistrationRequest(String accountName, String appId) {
-    Log.info(">> getRegistrationRequest " + accountName);
+    Log.trace(">> getRegistrationRequest ", accountName);
 
     byte[] challenge = challengeGenerator.generateChallenge(accountName);
     EnrollSessionData sessionData = new EnrollSessionData(accountName, appId, challenge);
@@ -79,11 +122,13 @@ public class U2FServerReferenceImpl implements U2FServer {
 
     String challengeBase64 = Base64.encodeBase64URLSafeString(challenge);
 
-    Log.info("-- Output --");
-    Log.info("  sessionId: " + sessionId);
-    Log.info("  challenge: " + Hex.encodeHexString(challenge));
-
-    Log.info("<< getRegistrationRequest " + accountName);
+    if (Log.isTraceEnabled()) {
+      Log.trace("-- Output --");
+      Log.trace("  sessionId: ", sessionId);
+      Log.trace("  challenge: ", EventLog.hex(challenge));
+      Log.trace("<< getRegistrationRequest ", accountName);
+    }
+    Log.event("getRegistrationRequest", "accountName", accountName, "sessionId", sessionId);
 
     return new RegistrationRequest(U2FConsts.U2F_V2, challengeBase64, appId, sessionId);
   }
@@ -91,78 +136,136 @@ public class U2FServerReferenceImpl implements U2FServer {
   @Override
   public SecurityKeyData processRegistrationResponse(RegistrationResponse registrationResponse,
       long currentTimeInMillis) throws U2FException {
-    Log.info(">> processRegistrationResponse");
+    Log.trace(">> processRegistrationResponse");
 
+    EnrollSessionData sessionData = getEnrollSessionData(registrationResponse.getSessionId());
+    SecurityKeyData securityKeyData = verifyRegistrationResponse(registrationResponse,
+        sessionData, getTrustedCertificates(), currentTimeInMillis);
+    addSecurityKeyData(sessionData, securityKeyData);
+
+    Log.trace("<< processRegistrationResponse");
+    return securityKeyData;
+  }
+
+  // The process* methods are split into stages that either only touch the data store or only
+  // compute, so that AsyncU2FServerReferenceImpl can run them on separate executors. Within the
+  // verify* stages, checks run in VerificationException.Stage order, cheapest first, so that
+  // junk and replayed responses are rejected before any certificate parsing or ECDSA.
+
+  // sessions are taken rather than looked up, so that a replayed response finds none and each
+  // session is verified at most once
+  EnrollSessionData getEnrollSessionData(String sessionId) throws U2FException {
+    EnrollSessionData sessionData = dataStore.takeSessionData(sessionId);
+
+    if (sessionData == null) {
+      throw new VerificationException(SESSION, "Unknown session_id");
+    }
+    return sessionData;
+  }
+
+  Set<X509Certificate> getTrustedCertificates() {
+    return dataStore.getTrustedCertificates();
+  }
+
+  /**
+   * Checks a registration response against its session, without touching the data store, and
+   * returns the security key to register.
+   */
+  SecurityKeyData verifyRegistrationResponse(RegistrationResponse registrationResponse,
+      EnrollSessionData sessionData, Set<X509Certificate> trustedCertificates,
+      long currentTimeInMillis) throws U2FException {
     String sessionId = registrationResponse.getSessionId();
     String browserDataBase64 = registrationResponse.getBd();
     String rawRegistrationDataBase64 = registrationResponse.getRegistrationData();
 
-    EnrollSessionData sessionData = dataStore.getEnrollSessionData(sessionId);
+    AppIdContext appIdContext = getAppIdContext(sessionData.getAppId());
+    // the exact bytes the browser hashed: they're verified and hashed without charset conversion
+    byte[] browserData = Base64.decodeBase64(browserDataBase64);
 
-    if (sessionData == null) {
-      throw new U2FException("Unknown session_id");
+    if (Log.isTraceEnabled()) {
+      Log.trace("-- Input --");
+      Log.trace("  sessionId: ", sessionId);
+      Log.trace("  challenge: ", EventLog.hex(sessionData.getChallenge()));
+      Log.trace("  accountName: ", sessionData.getAccountName());
+      Log.trace("  browserData: ", new String(browserData, Charsets.UTF_8));
     }
 
-    String appId = sessionData.getAppId();
-    String browserData = new String(Base64.decodeBase64(browserDataBase64));
-    byte[] rawRegistrationData = Base64.decodeBase64(rawRegistrationDataBase64);
+    // the client data is checked before the (much more expensive) registration data is decoded
+    ClientDataVerifier.verify(browserData, appIdContext.getRegisterType(),
+        sessionData.getChallenge(), appIdContext);
 
-    Log.info("-- Input --");
-    Log.info("  sessionId: " + sessionId);
-    Log.info("  challenge: " + Hex.encodeHexString(sessionData.getChallenge()));
-    Log.info("  accountName: " + sessionData.getAccountName());
-    Log.info("  browserData: " + browserData);
-    Log.info("  rawRegistrationData: " + Hex.encodeHexString(rawRegistrationData));
+    byte[] rawRegistrationData = Base64.decodeBase64(rawRegistrationDataBase64);
+    Log.trace("  rawRegistrationData: ", EventLog.hex(rawRegistrationData));
 
-    RegisterResponse registerResponse = RawMessageCodec.decodeRegisterResponse(rawRegistrationData);
+    // models are identified by the fingerprint of their certificate, which is only parsed the
+    // first time the model is seen
+    RegisterResponse registerResponse;
+    AttestationCertificate attestation;
+    try {
+      int certificateOffset = RawMessageCodec.getAttestationCertificateOffset(rawRegistrationData);
+      byte[] fingerprint = cryto.computeSha256(rawRegistrationData, certificateOffset,
+          RawMessageCodec.getDerLength(rawRegistrationData, certificateOffset));
+      attestation = attestationCertificates.getIfPresent(fingerprint);
+      if (attestation == null) {
+        registerResponse = RawMessageCodec.decodeRegisterResponse(rawRegistrationData);
+        X509Certificate certificate = registerResponse.getAttestationCertificate();
+        attestation = attestationCertificates.put(fingerprint, certificate);
+      } else {
+        registerResponse = RawMessageCodec.decodeRegisterResponse(rawRegistrationData,
+            attestation.getCertificate());
+      }
+    } catch (U2FException e) {
+      throw new VerificationException(CERTIFICATE, e.getMessage(), e);
+    }
     byte[] userPublicKey = registerResponse.getUserPublicKey();
     byte[] keyHandle = registerResponse.getKeyHandle();
     X509Certificate attestationCertificate = registerResponse.getAttestationCertificate();
     byte[] signature = registerResponse.getSignature();
 
-    Log.info("-- Parsed rawRegistrationResponse --");
-    Log.info("  userPublicKey: " + Hex.encodeHexString(userPublicKey));
-    Log.info("  keyHandle: " + Hex.encodeHexString(keyHandle));
-    Log.info("  attestationCertificate: " + attestationCertificate.toString());
-    try {
-      Log.info("  attestationCertificate bytes: "
-          + Hex.encodeHexString(attestationCertificate.getEncoded()));
-    } catch (CertificateEncodingException e) {
-      throw new U2FException("Cannot encode certificate", e);
+    if (Log.isTraceEnabled()) {
+      Log.trace("-- Parsed rawRegistrationResponse --");
+      Log.trace("  userPublicKey: ", EventLog.hex(userPublicKey));
+      Log.trace("  keyHandle: ", EventLog.hex(keyHandle));
+      Log.trace("  attestationCertificate: ", attestationCertificate);
+      try {
+        Log.trace("  attestationCertificate bytes: ",
+            EventLog.hex(attestationCertificate.getEncoded()));
+      } catch (CertificateEncodingException e) {
+        throw new U2FException("Cannot encode certificate", e);
+      }
+      Log.trace("  signature: ", EventLog.hex(signature));
     }
-    Log.info("  signature: " + Hex.encodeHexString(signature));
 
-    byte[] appIdSha256 = cryto.computeSha256(appId.getBytes());
-    byte[] browserDataSha256 = cryto.computeSha256(browserData.getBytes());
-    byte[] signedBytes = RawMessageCodec.encodeRegistrationSignedBytes(appIdSha256, browserDataSha256,
+    byte[] browserDataSha256 = cryto.computeSha256(browserData);
+    byte[] signedBytes = RawMessageCodec.encodeRegistrationSignedBytes(
+        appIdContext.getAppIdSha256(), browserDataSha256,
         keyHandle, userPublicKey);
 
-    Set<X509Certificate> trustedCertificates = dataStore.getTrustedCertificates();
-    if (!trustedCertificates.contains(attestationCertificate)) {
+    // against the trusted certificates as they are now, cached certificate or not
+    if (!trustedCertificates.contains(attestation.getCertificate())) {
       Log.warning("attestion cert is not trusted");    
     }
 
-    verifyBrowserData(new JsonParser().parse(browserData), "navigator.id.finishEnrollment", sessionData);
-    
-    Log.info("Verifying signature of bytes " + Hex.encodeHexString(signedBytes));
-    if (!cryto.verifySignature(attestationCertificate, signedBytes, signature)) {
-      throw new U2FException("Signature is invalid");
+    Log.trace("Verifying signature of bytes ", EventLog.hex(signedBytes));
+    if (!cryto.verifySignature(attestation.getPublicKey(), signedBytes, signature)) {
+      throw new VerificationException(SIGNATURE, "Signature is invalid");
     }
 
     // The first time we create the SecurityKeyData, we set the counter value to 0.
     // We don't actually know what the counter value of the real device is - but it will
     // be something bigger (or equal) to 0, so subsequent signatures will check out ok.
-    SecurityKeyData securityKeyData = new SecurityKeyData(currentTimeInMillis,
+    return new SecurityKeyData(currentTimeInMillis,
         keyHandle, userPublicKey, attestationCertificate, /* initial counter value */ 0);
-    dataStore.addSecurityKeyData(sessionData.getAccountName(), securityKeyData);
+  }
 
-    Log.info("<< processRegistrationResponse");
-    return securityKeyData;
+  void addSecurityKeyData(EnrollSessionData sessionData, SecurityKeyData securityKeyData) {
+    dataStore.addSecurityKeyData(sessionData.getAccountName(), securityKeyData);
+    Log.event("processRegistrationResponse", "accountName", sessionData.getAccountName());
   }
 
   @Override
   public List<SignRequest> getSignRequest(String accountName, String appId) throws U2FException {
-    Log.info(">> getSignRequest " + accountName);
+    Log.trace(">> getSignRequest ", accountName);
 
     List<SecurityKeyData> securityKeyDataList = dataStore.getSecurityKeyData(accountName);
 
@@ -171,146 +274,338 @@ public class U2FServerReferenceImpl implements U2FServer {
     for (SecurityKeyData securityKeyData : securityKeyDataList) {
       byte[] challenge = challengeGenerator.generateChallenge(accountName);
 
+      byte[] keyHandle = securityKeyData.getKeyHandle();
       SignSessionData sessionData = new SignSessionData(accountName, appId, 
-          challenge, securityKeyData.getPublicKey());
+          challenge, securityKeyData.getPublicKey(), keyHandle);
       String sessionId = dataStore.storeSessionData(sessionData);
 
-      byte[] keyHandle = securityKeyData.getKeyHandle();
-
-      Log.info("-- Output --");
-      Log.info("  sessionId: " + sessionId);
-      Log.info("  challenge: " + Hex.encodeHexString(challenge));
-      Log.info("  keyHandle: " + Hex.encodeHexString(keyHandle));
+      if (Log.isTraceEnabled()) {
+        Log.trace("-- Output --");
+        Log.trace("  sessionId: ", sessionId);
+        Log.trace("  challenge: ", EventLog.hex(challenge));
+        Log.trace("  keyHandle: ", EventLog.hex(keyHandle));
+      }
 
       String challengeBase64 = Base64.encodeBase64URLSafeString(challenge);
       String keyHandleBase64 = Base64.encodeBase64URLSafeString(keyHandle);
 
-      Log.info("<< getSignRequest " + accountName);
+      Log.trace("<< getSignRequest ", accountName);
       result.add(new SignRequest(U2FConsts.U2F_V2, challengeBase64, appId, keyHandleBase64, sessionId));
     }
+    Log.event("getSignRequest", "accountName", accountName,
+        "keys", securityKeyDataList.size());
     return result.build();
   }
 
   @Override
-  public SecurityKeyData processSignResponse(SignResponse signResponse) throws U2FException {
-    Log.info(">> processSignResponse");
-
-    String sessionId = signResponse.getSessionId();
-    String browserDataBase64 = signResponse.getBd();
-    String rawSignDataBase64 = signResponse.getSign();
+  public MultiKeySignRequest getMultiKeySignRequest(String accountName, String appId)
+      throws U2FException {
+    Log.trace(">> getMultiKeySignRequest ", accountName);
 
-    SignSessionData sessionData = dataStore.getSignSessionData(sessionId);
+    List<SecurityKeyData> securityKeyDataList = dataStore.getSecurityKeyData(accountName);
 
-    if (sessionData == null) {
-      throw new U2FException("Unknown session_id");
-    }
-    
-    String appId = sessionData.getAppId();
-    SecurityKeyData securityKeyData = null;
-    
-    for (SecurityKeyData temp : dataStore.getSecurityKeyData(sessionData.getAccountName())) {
-      if (Arrays.equals(sessionData.getPublicKey(), temp.getPublicKey())) {
-        securityKeyData = temp;
-        break;
-      }
+    ImmutableList.Builder<RegisteredKey> registeredKeys = ImmutableList.builder();
+    List<byte[]> keyHandles = Lists.newArrayListWithCapacity(securityKeyDataList.size());
+    for (SecurityKeyData securityKeyData : securityKeyDataList) {
+      byte[] keyHandle = securityKeyData.getKeyHandle();
+      keyHandles.add(keyHandle);
+      registeredKeys.add(new RegisteredKey(U2FConsts.U2F_V2,
+          Base64.encodeBase64URLSafeString(keyHandle)));
     }
 
-    if (securityKeyData == null) {
-      throw new U2FException("No security keys registered for this user");
+    // one challenge and one session, whichever key ends up signing
+    byte[] challenge = challengeGenerator.generateChallenge(accountName);
+    String sessionId = dataStore.storeSessionData(
+        new MultiKeySignSessionData(accountName, appId, challenge, keyHandles));
+
+    if (Log.isTraceEnabled()) {
+      Log.trace("-- Output --");
+      Log.trace("  sessionId: ", sessionId);
+      Log.trace("  challenge: ", EventLog.hex(challenge));
+      Log.trace("<< getMultiKeySignRequest ", accountName);
     }
+    Log.event("getMultiKeySignRequest", "accountName", accountName,
+        "keys", securityKeyDataList.size());
 
-    String browserData = new String(Base64.decodeBase64(browserDataBase64));
-    byte[] rawSignData = Base64.decodeBase64(rawSignDataBase64);
+    return new MultiKeySignRequest(Base64.encodeBase64URLSafeString(challenge), appId,
+        registeredKeys.build(), sessionId);
+  }
 
-    Log.info("-- Input --");
-    Log.info("  sessionId: " + sessionId);
-    Log.info("  publicKey: " + Hex.encodeHexString(securityKeyData.getPublicKey()));
-    Log.info("  challenge: " + Hex.encodeHexString(sessionData.getChallenge()));
-    Log.info("  accountName: " + sessionData.getAccountName());
-    Log.info("  browserData: " + browserData);
-    Log.info("  rawSignData: " + Hex.encodeHexString(rawSignData));
+  @Override
+  public SecurityKeyData processSignResponse(SignResponse signResponse) throws U2FException {
+    Log.trace(">> processSignResponse");
 
-    verifyBrowserData(new JsonParser().parse(browserData), "navigator.id.getAssertion", sessionData);
+    SignSessionData sessionData = getSignSessionData(signResponse.getSessionId());
+    SecurityKeyData securityKeyData = getSecurityKeyData(sessionData, signResponse);
+    int counter = verifySignResponse(signResponse, sessionData, securityKeyData);
+    updateSecurityKeyCounter(sessionData, securityKeyData, counter);
     
-    AuthenticateResponse authenticateResponse = RawMessageCodec.decodeAuthenticateResponse(rawSignData);
-    byte userPresence = authenticateResponse.getUserPresence();
-    int counter = authenticateResponse.getCounter();
-    byte[] signature = authenticateResponse.getSignature();
+    Log.trace("<< processSignResponse");
+    return securityKeyData;
+  }
 
-    Log.info("-- Parsed rawSignData --");
-    Log.info("  userPresence: " + Integer.toHexString(userPresence & 0xFF));
-    Log.info("  counter: " + counter);
-    Log.info("  signature: " + Hex.encodeHexString(signature));
+  @Override
+  public List<SignResult> processSignResponses(List<SignResponse> signResponses) {
+    Log.trace(">> processSignResponses");
 
-    if (userPresence != UserPresenceVerifier.USER_PRESENT_FLAG) {
-      throw new U2FException("User presence invalid during authentication");
+    // one bulk take for all the sessions, and one lookup for the keys of all the accounts involved
+    Set<String> sessionIds = Sets.newHashSet();
+    for (SignResponse signResponse : signResponses) {
+      sessionIds.add(signResponse.getSessionId());
     }
+    Map<String, SignSessionData> sessions =
+        Maps.newHashMap(dataStore.takeSignSessionData(sessionIds));
 
-    if (counter <= securityKeyData.getCounter()) {
-      throw new U2FException("Counter value smaller than expected!");      
+    Set<String> accountNames = Sets.newHashSet();
+    for (SignSessionData sessionData : sessions.values()) {
+      accountNames.add(sessionData.getAccountName());
+    }
+    Map<String, List<SecurityKeyData>> securityKeys = dataStore.getSecurityKeyData(accountNames);
+
+    // the signature checks are independent of each other, so they're spread across the
+    // verification executor...
+    int size = signResponses.size();
+    List<SignSessionData> sessionDataList = Lists.newArrayListWithCapacity(size);
+    List<SecurityKeyData> securityKeyDataList = Lists.newArrayListWithCapacity(size);
+    List<Future<Integer>> counters = Lists.newArrayListWithCapacity(size);
+    SignResult[] results = new SignResult[size];
+    for (int i = 0; i < size; i++) {
+      final SignResponse signResponse = signResponses.get(i);
+      // each session is good for one response, even within a batch
+      final SignSessionData sessionData = sessions.remove(signResponse.getSessionId());
+      SecurityKeyData securityKeyData = null;
+      Future<Integer> counter = null;
+      try {
+        if (sessionData == null) {
+          throw new VerificationException(SESSION, "Unknown session_id");
+        }
+        List<SecurityKeyData> accountKeys = securityKeys.get(sessionData.getAccountName());
+        final SecurityKeyData key = findSecurityKeyData(sessionData, signResponse,
+            (accountKeys == null) ? ImmutableList.<SecurityKeyData>of() : accountKeys);
+        securityKeyData = key;
+        counter = verificationExecutor.submit(new Callable<Integer>() {
+          @Override
+          public Integer call() throws U2FException {
+            return verifySignResponse(signResponse, sessionData, key);
+          }
+        });
+      } catch (U2FException e) {
+        results[i] = SignResult.failure(e);
+      } catch (RejectedExecutionException e) {
+        results[i] = SignResult.failure(new U2FException("Cannot schedule verification", e));
+      }
+      sessionDataList.add(sessionData);
+      securityKeyDataList.add(securityKeyData);
+      counters.add(counter);
     }
-    
-    byte[] appIdSha256 = cryto.computeSha256(appId.getBytes());
-    byte[] browserDataSha256 = cryto.computeSha256(browserData.getBytes());
-    byte[] signedBytes = RawMessageCodec.encodeAuthenticateSignedBytes(appIdSha256, userPresence,
-        counter, browserDataSha256);
 
-    Log.info("Verifying signature of bytes " + Hex.encodeHexString(signedBytes));
-    if (!cryto.verifySignature(cryto.decodePublicKey(securityKeyData.getPublicKey()), signedBytes,
-        signature)) {
-      throw new U2FException("Signature is invalid");
+    // ...while counter updates are applied in order. Each one is a compare-and-set, so two
+    // responses from the same key in one batch can't both succeed with the same counter value
+    for (int i = 0; i < size; i++) {
+      if (results[i] != null) {
+        continue;
+      }
+      SecurityKeyData securityKeyData = securityKeyDataList.get(i);
+      try {
+        int counter = getVerifiedCounter(counters.get(i));
+        updateSecurityKeyCounter(sessionDataList.get(i), securityKeyData, counter);
+        results[i] = SignResult.success(securityKeyData);
+      } catch (U2FException e) {
+        results[i] = SignResult.failure(e);
+      }
     }
 
-    dataStore.updateSecurityKeyCounter(sessionData.getAccountName(), securityKeyData.getPublicKey(), counter);
-    
-    Log.info("<< processSignResponse");
-    return securityKeyData;
+    Log.trace("<< processSignResponses");
+    return ImmutableList.copyOf(results);
   }
 
-  private void verifyBrowserData(JsonElement browserDataAsElement, 
-      String messageType, EnrollSessionData sessionData) throws U2FException {
-    
-    if (!browserDataAsElement.isJsonObject()) {
-      throw new U2FException("browserdata has wrong format");
+  private static int getVerifiedCounter(Future<Integer> counter) throws U2FException {
+    try {
+      return Uninterruptibles.getUninterruptibly(counter);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof U2FException) {
+        throw (U2FException) e.getCause();
+      }
+      throw new U2FException("Error when verifying signature", e.getCause());
     }
-    
-    JsonObject browserData = browserDataAsElement.getAsJsonObject();
-    
-    // check that the right "typ" parameter is present in the browserdata JSON
-    if (!browserData.has(TYPE_PARAM)) {
-      throw new U2FException("bad browserdata: missing 'typ' param");
+  }
+
+  SignSessionData getSignSessionData(String sessionId) throws U2FException {
+    // a typed take, so that an enroll session id doesn't destroy the pending registration
+    SignSessionData sessionData =
+        dataStore.takeSignSessionData(Collections.singleton(sessionId)).get(sessionId);
+
+    if (sessionData == null) {
+      throw new VerificationException(SESSION, "Unknown session_id");
     }
+    return sessionData;
+  }
 
-    String type = browserData.get(TYPE_PARAM).getAsString();
-    if (!messageType.equals(type)) {
-      throw new U2FException("bad browserdata: bad type " + type);
+  SecurityKeyData getSecurityKeyData(SignSessionData sessionData, SignResponse signResponse)
+      throws U2FException {
+    byte[] keyHandle = getSigningKeyHandle(sessionData, signResponse);
+    if (keyHandle == null) {
+      // sessions stored before key handles were recorded: scan the account's keys
+      return findSecurityKeyData(sessionData, signResponse,
+          dataStore.getSecurityKeyData(sessionData.getAccountName()));
     }
+    SecurityKeyData securityKeyData =
+        dataStore.getSecurityKeyData(sessionData.getAccountName(), keyHandle);
+    if (securityKeyData == null || (sessionData.getPublicKey() != null
+        && !Arrays.equals(sessionData.getPublicKey(), securityKeyData.getPublicKey()))) {
+      throw new VerificationException(SESSION, "No security keys registered for this user");
+    }
+    return securityKeyData;
+  }
 
-    // check that the right challenge is in the browserdata
-    if (!browserData.has(CHALLENGE_PARAM)) {
-      throw new U2FException("bad browserdata: missing 'challenge' param");
+  private static SecurityKeyData findSecurityKeyData(SignSessionData sessionData,
+      SignResponse signResponse, List<SecurityKeyData> securityKeyDataList)
+      throws U2FException {
+    byte[] keyHandle = getSigningKeyHandle(sessionData, signResponse);
+    for (SecurityKeyData securityKeyData : securityKeyDataList) {
+      if ((keyHandle != null)
+          ? Arrays.equals(keyHandle, securityKeyData.getKeyHandle())
+          : Arrays.equals(sessionData.getPublicKey(), securityKeyData.getPublicKey())) {
+        return securityKeyData;
+      }
+    }
+    throw new VerificationException(SESSION, "No security keys registered for this user");
+  }
+
+  /**
+   * Returns the key handle of the key expected to have signed: the one the session was created
+   * for, or for a multi-key session, the one named in the response. Returns null for sessions
+   * that only record the public key.
+   */
+  private static byte[] getSigningKeyHandle(SignSessionData sessionData,
+      SignResponse signResponse) throws U2FException {
+    if (!(sessionData instanceof MultiKeySignSessionData)) {
+      return sessionData.getKeyHandle();
+    }
+    if (signResponse.getKeyHandle() == null) {
+      throw new VerificationException(SESSION, "missing key handle in sign response");
     }
+    byte[] keyHandle = Base64.decodeBase64(signResponse.getKeyHandle());
+    if (!((MultiKeySignSessionData) sessionData).isAllowedKeyHandle(keyHandle)) {
+      throw new VerificationException(SESSION,
+          "key handle was not part of the sign request");
+    }
+    return keyHandle;
+  }
 
-    if (browserData.has(ORIGIN_PARAM)) {
-      verifyOrigin(browserData.get(ORIGIN_PARAM).getAsString());
+  /**
+   * Checks a sign response against its session and security key, without touching the data
+   * store, and returns the (verified) counter value that the key reported.
+   */
+  int verifySignResponse(SignResponse signResponse, SignSessionData sessionData,
+      SecurityKeyData securityKeyData) throws U2FException {
+    AppIdContext appIdContext = getAppIdContext(sessionData.getAppId());
+
+    // the exact bytes the browser hashed: they're verified and hashed without charset conversion
+    byte[] browserData = Base64.decodeBase64(signResponse.getBd());
+    byte[] rawSignData = Base64.decodeBase64(signResponse.getSign());
+
+    if (Log.isTraceEnabled()) {
+      Log.trace("-- Input --");
+      Log.trace("  sessionId: ", signResponse.getSessionId());
+      Log.trace("  publicKey: ", EventLog.hex(securityKeyData.getPublicKey()));
+      Log.trace("  challenge: ", EventLog.hex(sessionData.getChallenge()));
+      Log.trace("  accountName: ", sessionData.getAccountName());
+      Log.trace("  browserData: ", new String(browserData, Charsets.UTF_8));
+      Log.trace("  rawSignData: ", EventLog.hex(rawSignData));
     }
 
-    byte[] challengeFromBrowserData = 
-        Base64.decodeBase64(browserData.get(CHALLENGE_PARAM).getAsString());
+    ClientDataVerifier.verify(browserData, appIdContext.getAuthenticateType(),
+        sessionData.getChallenge(), appIdContext);
+    
+    // rawSignData is read in place: the signature is verified as a sub-range of it
+    if (rawSignData.length < RawMessageCodec.AUTHENTICATE_RESPONSE_SIGNATURE_OFFSET) {
+      throw new VerificationException(SIGNATURE, "Error when parsing rawSignData");
+    }
+    ByteBuffer rawSignBuffer = ByteBuffer.wrap(rawSignData);
+    byte userPresence = rawSignBuffer.get();
+    int counter = rawSignBuffer.getInt();
+    ByteBuffer signature = rawSignBuffer.slice();
+
+    if (Log.isTraceEnabled()) {
+      Log.trace("-- Parsed rawSignData --");
+      Log.trace("  userPresence: ", Integer.toHexString(userPresence & 0xFF));
+      Log.trace("  counter: ", counter);
+      Log.trace("  signature: ", EventLog.hex(Arrays.copyOfRange(rawSignData,
+          RawMessageCodec.AUTHENTICATE_RESPONSE_SIGNATURE_OFFSET, rawSignData.length)));
+    }
 
+    if (userPresence != UserPresenceVerifier.USER_PRESENT_FLAG) {
+      throw new VerificationException(COUNTER,
+          "User presence invalid during authentication");
+    }
 
-    if (!Arrays.equals(challengeFromBrowserData, sessionData.getChallenge())) {
-      throw new U2FException("wrong challenge signed in browserdata");
+    if (counter <= securityKeyData.getCounter()) {
+      throw new VerificationException(COUNTER, "Counter value smaller than expected!");      
+    }
+    
+    boolean signatureValid;
+    try {
+      byte[] browserDataSha256 = cryto.computeSha256(browserData);
+      byte[] signedBytes = RawMessageCodec.encodeAuthenticateSignedBytes(
+          appIdContext.getAppIdSha256(), userPresence, counter, browserDataSha256);
+
+      Log.trace("Verifying signature of bytes ", EventLog.hex(signedBytes));
+      signatureValid = cryto.verifySignature(
+          publicKeyCache.getPublicKey(securityKeyData.getPublicKey()),
+          ByteBuffer.wrap(signedBytes), signature);
+    } catch (U2FException e) {
+      // an undecodable public key or signature, or a crypto provider failure
+      throw new VerificationException(SIGNATURE, e.getMessage(), e);
     }
+    if (!signatureValid) {
+      throw new VerificationException(SIGNATURE, "Signature is invalid");
+    }
+    return counter;
+  }
 
-    // TODO: Deal with ChannelID
+  /**
+   * Stores the verified counter value, unless another response from the same key has stored an
+   * equal or higher one since {@code securityKeyData} was read. Lock-free: the counter is moved on
+   * with compare-and-set, retried against the latest stored value for as long as that is still
+   * lower, so two concurrent responses can't both succeed with the same counter value.
+   */
+  void updateSecurityKeyCounter(SignSessionData sessionData, SecurityKeyData securityKeyData,
+      int counter) throws U2FException {
+    String accountName = sessionData.getAccountName();
+    byte[] keyHandle = securityKeyData.getKeyHandle();
+    int expectedCounter = securityKeyData.getCounter();
+    while (true) {
+      if (counter <= expectedCounter) {
+        throw new VerificationException(COUNTER, "Counter value smaller than expected!");
+      }
+      if (dataStore.compareAndSetCounter(accountName, keyHandle, expectedCounter, counter)) {
+        break;
+      }
+      SecurityKeyData current = dataStore.getSecurityKeyData(accountName, keyHandle);
+      if (current == null) {
+        throw new VerificationException(SESSION, "Security key was removed");
+      }
+      expectedCounter = current.getCounter();
+    }
+    Log.event("processSignResponse", "accountName", accountName, "counter", counter);
   }
-  
-  private void verifyOrigin(String origin) throws U2FException {
-    if (!allowedOrigins.contains(canonicalizeOrigin(origin))) {
-      throw new U2FException(origin +
-          " is not a recognized home origin for this backend");
+
+  /**
+   * Returns the shared verification context for {@code appId}, building it on first use. A
+   * deployment only serves a handful of appIds, so contexts are never evicted.
+   */
+  AppIdContext getAppIdContext(String appId) throws U2FException {
+    AppIdContext appIdContext = appIdContexts.get(appId);
+    if (appIdContext == null) {
+      appIdContext = new AppIdContext(appId, cryto.computeSha256(appId.getBytes(Charsets.UTF_8)),
+          allowedOrigins);
+      AppIdContext existing = appIdContexts.putIfAbsent(appId, appIdContext);
+      if (existing != null) {
+        appIdContext = existing;
+      }
     }
+    return appIdContext;
   }
 
   @Override
@@ -322,6 +617,7 @@ public class U2FServerReferenceImpl implements U2FServer {
   public void removeSecurityKey(String accountName, byte[] publicKey)
       throws U2FException {
     dataStore.removeSecuityKey(accountName, publicKey);
+    publicKeyCache.invalidate(publicKey);
   }
   
   private static Set<String> canonicalizeOrigins(Set<String> origins) {
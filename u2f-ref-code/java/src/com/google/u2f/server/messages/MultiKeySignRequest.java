@@ -0,0 +1,103 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.messages;
+
+import java.util.List;
+
+/**
+ * A single sign challenge that any of an account's registered keys may answer, in the shape of
+ * the U2F JavaScript API 1.1 sign request. Unlike a list of {@link SignRequest}s, it needs only
+ * one challenge and one session for the whole account.
+ */
+public class MultiKeySignRequest {
+  /** The websafe-base64-encoded challenge. */
+  private final String challenge;
+
+  /**
+   * The application id that the RP would like to assert. The U2F token will
+   * enforce that the key handle it signs with is associated with this
+   * application id. The browser enforces that the calling origin belongs to the
+   * application identified by the application id.
+   */
+  private final String appId;
+
+  /** The keys that may sign the challenge. */
+  private final List<RegisteredKey> registeredKeys;
+
+  /**
+   * A session id created by the RP. The response from the API will include the
+   * sessionId, together with the key handle of the key that signed.
+   */
+  private final String sessionId;
+
+  public MultiKeySignRequest(String challenge, String appId, List<RegisteredKey> registeredKeys,
+      String sessionId) {
+    this.challenge = challenge;
+    this.appId = appId;
+    this.registeredKeys = registeredKeys;
+    this.sessionId = sessionId;
+  }
+
+  public String getChallenge() {
+    return challenge;
+  }
+
+  public String getAppId() {
+    return appId;
+  }
+
+  public List<RegisteredKey> getRegisteredKeys() {
+    return registeredKeys;
+  }
+
+  public String getSessionId() {
+    return sessionId;
+  }
+
+  @Override
+  public int hashCode() {
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + ((appId == null) ? 0 : appId.hashCode());
+    result = prime * result + ((challenge == null) ? 0 : challenge.hashCode());
+    result = prime * result + ((registeredKeys == null) ? 0 : registeredKeys.hashCode());
+    result = prime * result + ((sessionId == null) ? 0 : sessionId.hashCode());
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    MultiKeySignRequest other = (MultiKeySignRequest) obj;
+    if (appId == null) {
+      if (other.appId != null)
+        return false;
+    } else if (!appId.equals(other.appId))
+      return false;
+    if (challenge == null) {
+      if (other.challenge != null)
+        return false;
+    } else if (!challenge.equals(other.challenge))
+      return false;
+    if (registeredKeys == null) {
+      if (other.registeredKeys != null)
+        return false;
+    } else if (!registeredKeys.equals(other.registeredKeys))
+      return false;
+    if (sessionId == null) {
+      if (other.sessionId != null)
+        return false;
+    } else if (!sessionId.equals(other.sessionId))
+      return false;
+    return true;
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.messages;
+
+/**
+ * One of the keys that may answer a {@link MultiKeySignRequest} (an entry of "registeredKeys" in
+ * the U2F JavaScript API 1.1).
+ */
+public class RegisteredKey {
+  /**
+   * Version of the protocol that the U2F token speaks. For the version of the
+   * protocol described herein, must be "U2F_V2"
+   */
+  private final String version;
+
+  /**
+   * websafe-base64 encoding of the key handle obtained from the U2F token
+   * during registration.
+   */
+  private final String keyHandle;
+
+  public RegisteredKey(String version, String keyHandle) {
+    this.version = version;
+    this.keyHandle = keyHandle;
+  }
+
+  public String getVersion() {
+    return version;
+  }
+
+  public String getKeyHandle() {
+    return keyHandle;
+  }
+
+  @Override
+  public int hashCode() {
+    final int prime = 31;
+    int result = 1;
+    result = prime * result + ((keyHandle == null) ? 0 : keyHandle.hashCode());
+    result = prime * result + ((version == null) ? 0 : version.hashCode());
+    return result;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj)
+      return true;
+    if (obj == null)
+      return false;
+    if (getClass() != obj.getClass())
+      return false;
+    RegisteredKey other = (RegisteredKey) obj;
+    if (keyHandle == null) {
+      if (other.keyHandle != null)
+        return false;
+    } else if (!keyHandle.equals(other.keyHandle))
+      return false;
+    if (version == null) {
+      if (other.version != null)
+        return false;
+    } else if (!version.equals(other.version))
+      return false;
+    return true;
+  }
+}
@@ -23,12 +23,24 @@ public class SignResponse {
   /** application id originally passed */
   private final String appId;
 
+  /**
+   * websafe-base64 key handle of the key that signed. Required when answering a
+   * {@link MultiKeySignRequest}, null otherwise.
+   */
+  private final String keyHandle;
+
   public SignResponse(String bd, String sign, String challenge, String sessionId, String appId) {
+    this(bd, sign, challenge, sessionId, appId, null);
+  }
+
+  public SignResponse(String bd, String sign, String challenge, String sessionId, String appId,
+      String keyHandle) {
     this.bd = bd;
     this.sign = sign;
     this.challenge = challenge;
     this.sessionId = sessionId;
     this.appId = appId;
+    this.keyHandle = keyHandle;
   }
 
   public String getBd() {
@@ -51,6 +63,10 @@ public class SignResponse {
     return appId;
   }
 
+  public String getKeyHandle() {
+    return keyHandle;
+  }
+
   @Override
   public int hashCode() {
     final int prime = 31;
@@ -58,6 +74,7 @@ public class SignResponse {
     result = prime * result + ((appId == null) ? 0 : appId.hashCode());
     result = prime * result + ((bd == null) ? 0 : bd.hashCode());
     result = prime * result + ((challenge == null) ? 0 : challenge.hashCode());
+    result = prime * result + ((keyHandle == null) ? 0 : keyHandle.hashCode());
     result = prime * result + ((sessionId == null) ? 0 : sessionId.hashCode());
     result = prime * result + ((sign == null) ? 0 : sign.hashCode());
     return result;
@@ -87,6 +104,11 @@ public class SignResponse {
         return false;
     } else if (!challenge.equals(other.challenge))
       return false;
+    if (keyHandle == null) {
+      if (other.keyHandle != null)
+        return false;
+    } else if (!keyHandle.equals(other.keyHandle))
+      return false;
     if (sessionId == null) {
       if (other.sessionId != null)
         return false;
@@ -0,0 +1,46 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.messages;
+
+import com.google.u2f.U2FException;
+import com.google.u2f.server.data.SecurityKeyData;
+
+/**
+ * Outcome of verifying one {@link SignResponse} of a batch: either the security key that signed
+ * it, or the reason it was rejected.
+ */
+public class SignResult {
+  private final SecurityKeyData securityKeyData;
+  private final U2FException exception;
+
+  private SignResult(SecurityKeyData securityKeyData, U2FException exception) {
+    this.securityKeyData = securityKeyData;
+    this.exception = exception;
+  }
+
+  public static SignResult success(SecurityKeyData securityKeyData) {
+    return new SignResult(securityKeyData, null);
+  }
+
+  public static SignResult failure(U2FException exception) {
+    return new SignResult(null, exception);
+  }
+
+  public boolean isSuccess() {
+    return exception == null;
+  }
+
+  /** The security key that produced the signature, or null if verification failed. */
+  public SecurityKeyData getSecurityKeyData() {
+    return securityKeyData;
+  }
+
+  /** Why verification failed, or null if it succeeded. */
+  public U2FException getException() {
+    return exception;
+  }
+}
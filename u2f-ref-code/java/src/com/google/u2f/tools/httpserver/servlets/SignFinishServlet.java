@@ -30,7 +30,8 @@ public class SignFinishServlet extends HtmlServlet {
         req.getParameter("signData"),
         req.getParameter("challenge"),
         req.getParameter("sessionId"),
-        req.getParameter("appId"));
+        req.getParameter("appId"),
+        req.getParameter("keyHandle"));
     try {
       u2fServer.processSignResponse(signResponse);
       body.println("Success!!!");
@@ -0,0 +1,94 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+public class EventLogTest {
+  private final Logger logger = Logger.getLogger(EventLogTest.class.getName());
+  private final List<LogRecord> records = Lists.newArrayList();
+  private final Handler handler = new Handler() {
+    @Override
+    public void publish(LogRecord record) {
+      records.add(record);
+    }
+
+    @Override
+    public void flush() {}
+
+    @Override
+    public void close() {}
+  };
+
+  private EventLog log;
+
+  @Before
+  public void setup() {
+    logger.addHandler(handler);
+    logger.setUseParentHandlers(false);
+    log = EventLog.getLog(EventLogTest.class);
+  }
+
+  @After
+  public void tearDown() {
+    logger.removeHandler(handler);
+    logger.setLevel(null);
+  }
+
+  @Test
+  public void testDisabledByDefault() {
+    logger.setLevel(Level.INFO);
+
+    log.event("register", "counter", 1);
+    log.trace("  keyHandle: ", EventLog.hex(new byte[] {0x0a}));
+
+    assertFalse(log.isEventEnabled());
+    assertFalse(log.isTraceEnabled());
+    assertTrue(records.isEmpty());
+  }
+
+  @Test
+  public void testEvent() {
+    logger.setLevel(Level.FINE);
+
+    log.event("processSignResponse", "accountName", "test@example.com", "counter", 1024);
+    log.trace("not written");
+
+    assertEquals(1, records.size());
+    assertEquals("processSignResponse accountName=test@example.com counter=1024",
+        format(records.get(0)));
+  }
+
+  @Test
+  public void testTrace() {
+    logger.setLevel(Level.FINEST);
+
+    log.trace("  keyHandle: ", EventLog.hex(new byte[] {0x0a, (byte) 0xff}));
+
+    assertEquals(Level.FINEST, records.get(0).getLevel());
+    assertEquals("  keyHandle: 0aff", format(records.get(0)));
+  }
+
+  private static String format(LogRecord record) {
+    return new SimpleFormatter().formatMessage(record);
+  }
+}
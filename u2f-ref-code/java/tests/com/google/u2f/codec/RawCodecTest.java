@@ -8,10 +8,15 @@ package com.google.u2f.codec;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
 
 import org.junit.Test;
 
 import com.google.u2f.TestVectors;
+import com.google.u2f.U2FException;
 import com.google.u2f.key.UserPresenceVerifier;
 import com.google.u2f.key.messages.AuthenticateRequest;
 import com.google.u2f.key.messages.AuthenticateResponse;
@@ -64,6 +69,38 @@ public class RawCodecTest extends TestVectors {
         KEY_HANDLE, VENDOR_CERTIFICATE, SIGNATURE_ENROLL), registerResponse);
   }
 
+  @Test
+  public void testDecodeRegisterResponse_knownCertificate() throws Exception {
+    RegisterResponse registerResponse =
+        RawMessageCodec.decodeRegisterResponse(REGISTRATION_RESPONSE_DATA, VENDOR_CERTIFICATE);
+
+    assertSame(VENDOR_CERTIFICATE, registerResponse.getAttestationCertificate());
+    assertArrayEquals(SIGNATURE_ENROLL, registerResponse.getSignature());
+  }
+
+  @Test
+  public void testGetAttestationCertificateOffset() throws Exception {
+    int offset = RawMessageCodec.getAttestationCertificateOffset(REGISTRATION_RESPONSE_DATA);
+    int length = RawMessageCodec.getDerLength(REGISTRATION_RESPONSE_DATA, offset);
+
+    assertArrayEquals(VENDOR_CERTIFICATE.getEncoded(),
+        Arrays.copyOfRange(REGISTRATION_RESPONSE_DATA, offset, offset + length));
+  }
+
+  @Test
+  public void testGetDerLength() throws Exception {
+    byte[] longForm = new byte[1 + 0x80 + 3];
+    longForm[1] = 0x30;
+    longForm[2] = (byte) 0x81;
+    longForm[3] = (byte) 0x80;
+
+    assertEquals(3, RawMessageCodec.getDerLength(new byte[] {0x02, 0x01, 0x05}, 0));
+    assertEquals(3 + 0x80, RawMessageCodec.getDerLength(longForm, 1));
+    assertDerLengthRejected(new byte[] {0x02, 0x02, 0x05});
+    assertDerLengthRejected(new byte[] {0x30, (byte) 0x80, 0x00, 0x00});
+    assertDerLengthRejected(new byte[] {0x30, (byte) 0x82, 0x01});
+  }
+
   @Test
   public void testEncodeAuthenticateRequest() throws Exception {
     AuthenticateRequest authenticateRequest = new AuthenticateRequest(
@@ -108,4 +145,12 @@ public class RawCodecTest extends TestVectors {
 
     assertArrayEquals(EXPECTED_AUTHENTICATE_SIGNED_BYTES, encodedBytes);
   }
+
+  private static void assertDerLengthRejected(byte[] data) {
+    try {
+      RawMessageCodec.getDerLength(data, 0);
+      fail("expected exception, but didn't get it");
+    } catch (U2FException expected) {
+    }
+  }
 }
@@ -0,0 +1,155 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.key.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.ECPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+
+import org.bouncycastle.asn1.sec.SECNamedCurves;
+import org.bouncycastle.asn1.x9.X9ECParameters;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import com.google.u2f.TestVectors;
+import com.google.u2f.codec.RawMessageCodec;
+import com.google.u2f.key.UserPresenceVerifier;
+import com.google.u2f.key.messages.AuthenticateRequest;
+import com.google.u2f.key.messages.AuthenticateResponse;
+import com.google.u2f.key.messages.RegisterRequest;
+import com.google.u2f.key.messages.RegisterResponse;
+
+public class KeyWrappingDataStoreTest extends TestVectors {
+  private static final byte[] MASTER_KEY = new byte[32];
+  private static final X9ECParameters P256 = SECNamedCurves.getByName("secp256r1");
+
+  @Mock com.google.u2f.key.KeyPairGenerator mockKeyPairGenerator;
+  @Mock UserPresenceVerifier mockUserPresenceVerifier;
+
+  private final KeyWrappingDataStore dataStore =
+      new KeyWrappingDataStore(MASTER_KEY, new SecureRandom());
+  private KeyPair keyPair;
+
+  @Before
+  public void setup() throws Exception {
+    initMocks(this);
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"), new SecureRandom());
+    keyPair = keyPairGenerator.generateKeyPair();
+  }
+
+  @Test
+  public void testUnwrap() {
+    byte[] keyHandle = dataStore.generateKeyHandle(APP_ID_ENROLL_SHA256, keyPair);
+    KeyPair unwrapped = dataStore.getKeyPair(APP_ID_ENROLL_SHA256, keyHandle);
+
+    assertEquals(KeyWrappingDataStore.KEY_HANDLE_LENGTH, keyHandle.length);
+    assertEquals(((ECPrivateKey) keyPair.getPrivate()).getS(),
+        ((ECPrivateKey) unwrapped.getPrivate()).getS());
+    assertEquals(((ECPublicKey) keyPair.getPublic()).getW(),
+        ((ECPublicKey) unwrapped.getPublic()).getW());
+    // a fresh nonce for every key handle
+    assertFalse(Arrays.equals(keyHandle,
+        dataStore.generateKeyHandle(APP_ID_ENROLL_SHA256, keyPair)));
+  }
+
+  @Test
+  public void testUnwrap_rejected() {
+    byte[] keyHandle = dataStore.generateKeyHandle(APP_ID_ENROLL_SHA256, keyPair);
+    byte[] tampered = keyHandle.clone();
+    tampered[20] ^= 1;
+    byte[] otherMasterKey = MASTER_KEY.clone();
+    otherMasterKey[0] = 1;
+
+    assertNull(dataStore.getKeyPair(APP_ID_SIGN_SHA256, keyHandle));
+    assertNull(dataStore.getKeyPair(APP_ID_ENROLL_SHA256, tampered));
+    assertNull(dataStore.getKeyPair(APP_ID_ENROLL_SHA256, KEY_HANDLE));
+    assertNull(new KeyWrappingDataStore(otherMasterKey, new SecureRandom())
+        .getKeyPair(APP_ID_ENROLL_SHA256, keyHandle));
+  }
+
+  @Test
+  public void testUnwrap_invalidKeyPair() {
+    BigInteger two = BigInteger.valueOf(2);
+    byte[] offCurve = plaintext(two, P256.getG().multiply(two));
+    offCurve[offCurve.length - 1] ^= 1;
+    byte[] badEncoding = plaintext(two, P256.getG().multiply(two));
+    badEncoding[32] = 0x05;
+
+    assertNotNull(unwrap(plaintext(two, P256.getG().multiply(two))));
+    assertNull(unwrap(plaintext(BigInteger.ZERO, P256.getG())));
+    assertNull(unwrap(plaintext(P256.getN(), P256.getG())));
+    assertNull(unwrap(offCurve));
+    assertNull(unwrap(badEncoding));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testGenerateKeyHandle_notP256() throws Exception {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(new ECGenParameterSpec("secp384r1"), new SecureRandom());
+
+    dataStore.generateKeyHandle(APP_ID_ENROLL_SHA256, keyPairGenerator.generateKeyPair());
+  }
+
+  @Test
+  public void testRegisterAndAuthenticate() throws Exception {
+    when(mockKeyPairGenerator.generateKeyPair(any(byte[].class), any(byte[].class)))
+        .thenReturn(keyPair);
+    when(mockKeyPairGenerator.encodePublicKey(keyPair.getPublic()))
+        .thenReturn(USER_PUBLIC_KEY_ENROLL_HEX);
+    when(mockUserPresenceVerifier.verifyUserPresence()).thenReturn(
+        UserPresenceVerifier.USER_PRESENT_FLAG);
+    U2FKeyReferenceImpl u2fKey = new U2FKeyReferenceImpl(VENDOR_CERTIFICATE,
+        VENDOR_CERTIFICATE_PRIVATE_KEY, mockKeyPairGenerator, dataStore, dataStore,
+        mockUserPresenceVerifier, new BouncyCastleCrypto());
+
+    RegisterResponse registerResponse = u2fKey.register(
+        new RegisterRequest(APP_ID_ENROLL_SHA256, BROWSER_DATA_ENROLL_SHA256));
+    AuthenticateResponse authenticateResponse = u2fKey.authenticate(new AuthenticateRequest(
+        AuthenticateRequest.USER_PRESENCE_SIGN, BROWSER_DATA_SIGN_SHA256, APP_ID_ENROLL_SHA256,
+        registerResponse.getKeyHandle()));
+
+    assertEquals(1, authenticateResponse.getCounter());
+    Signature ecdsaSignature = Signature.getInstance("SHA256withECDSA");
+    ecdsaSignature.initVerify(keyPair.getPublic());
+    ecdsaSignature.update(RawMessageCodec.encodeAuthenticateSignedBytes(APP_ID_ENROLL_SHA256,
+        authenticateResponse.getUserPresence(), 1, BROWSER_DATA_SIGN_SHA256));
+    assertTrue(ecdsaSignature.verify(authenticateResponse.getSignature()));
+  }
+
+  private KeyPair unwrap(byte[] plaintext) {
+    return dataStore.getKeyPair(APP_ID_ENROLL_SHA256,
+        dataStore.wrap(APP_ID_ENROLL_SHA256, plaintext));
+  }
+
+  /** {@code d | Q} as the key handle holds it, whether or not it is a valid key pair. */
+  private static byte[] plaintext(BigInteger d, ECPoint q) {
+    byte[] plaintext = new byte[32 + 65];
+    byte[] privateKey = d.toByteArray();
+    int length = Math.min(privateKey.length, 32);
+    System.arraycopy(privateKey, privateKey.length - length, plaintext, 32 - length, length);
+    System.arraycopy(q.getEncoded(false), 0, plaintext, 32, 65);
+    return plaintext;
+  }
+}
@@ -0,0 +1,96 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.key.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.security.KeyPair;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.u2f.TestVectors;
+import com.google.u2f.key.KeyPairGenerator;
+
+public class PooledKeyPairGeneratorTest extends TestVectors {
+  @Mock KeyPairGenerator mockKeyPairGenerator;
+
+  private final List<Runnable> refills = Lists.newArrayList();
+  private final Executor queueingExecutor = new Executor() {
+    @Override
+    public void execute(Runnable command) {
+      refills.add(command);
+    }
+  };
+
+  @Before
+  public void setup() {
+    initMocks(this);
+    when(mockKeyPairGenerator.generateKeyPair(any(byte[].class), any(byte[].class)))
+        .thenReturn(USER_KEY_PAIR_SIGN);
+    when(mockKeyPairGenerator.generateKeyPair(APP_ID_ENROLL_SHA256, BROWSER_DATA_ENROLL_SHA256))
+        .thenReturn(USER_KEY_PAIR_ENROLL);
+  }
+
+  @Test
+  public void testGenerateKeyPair_fromPool() {
+    PooledKeyPairGenerator generator = new PooledKeyPairGenerator(mockKeyPairGenerator, 4, 1,
+        MoreExecutors.sameThreadExecutor());
+    assertEquals(4, generator.getPoolDepth());
+
+    for (int i = 0; i < 10; i++) {
+      assertSame(USER_KEY_PAIR_SIGN,
+          generator.generateKeyPair(APP_ID_ENROLL_SHA256, BROWSER_DATA_ENROLL_SHA256));
+    }
+
+    assertEquals(10, generator.getHits());
+    assertEquals(0, generator.getMisses());
+    // refilled to 4 whenever it dropped to 1: 4 initially, then 3 more for every 3 taken
+    verify(mockKeyPairGenerator, times(13)).generateKeyPair(any(byte[].class),
+        any(byte[].class));
+  }
+
+  @Test
+  public void testGenerateKeyPair_miss() {
+    PooledKeyPairGenerator generator =
+        new PooledKeyPairGenerator(mockKeyPairGenerator, 2, 0, queueingExecutor);
+    assertEquals(1, refills.size());
+
+    // the refill hasn't run yet, so the key pair is generated inline for this request
+    KeyPair keyPair = generator.generateKeyPair(APP_ID_ENROLL_SHA256, BROWSER_DATA_ENROLL_SHA256);
+
+    assertSame(USER_KEY_PAIR_ENROLL, keyPair);
+    assertEquals(1, generator.getMisses());
+    // and only one refill is pending at a time
+    assertEquals(1, refills.size());
+
+    refills.remove(0).run();
+    assertEquals(2, generator.getPoolDepth());
+    generator.generateKeyPair(APP_ID_ENROLL_SHA256, BROWSER_DATA_ENROLL_SHA256);
+    assertEquals(0, refills.size());
+    generator.generateKeyPair(APP_ID_ENROLL_SHA256, BROWSER_DATA_ENROLL_SHA256);
+
+    assertEquals(2, generator.getHits());
+    assertEquals(1, refills.size());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testLowWaterMarkAboveCapacity() {
+    new PooledKeyPairGenerator(mockKeyPairGenerator, 2, 2, queueingExecutor);
+  }
+}
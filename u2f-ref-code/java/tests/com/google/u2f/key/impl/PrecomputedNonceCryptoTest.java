@@ -0,0 +1,104 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.key.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Sets;
+import com.google.u2f.TestVectors;
+
+public class PrecomputedNonceCryptoTest extends TestVectors {
+  private KeyPair keyPair;
+
+  @Before
+  public void setup() throws Exception {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"), new SecureRandom());
+    keyPair = keyPairGenerator.generateKeyPair();
+  }
+
+  @Test
+  public void testSign() throws Exception {
+    PrecomputedNonceCrypto crypto =
+        new PrecomputedNonceCrypto(new BouncyCastleCrypto(), new SecureRandom(), 3, 0);
+    for (int i = 0; i < 3; i++) {
+      assertTrue(crypto.precompute());
+    }
+    assertFalse(crypto.precompute());
+    assertEquals(3, crypto.getAvailableNonces());
+
+    Set<String> signatures = Sets.newHashSet();
+    for (int i = 0; i < 4; i++) {
+      byte[] message = ("message " + i).getBytes(Charsets.UTF_8);
+      byte[] signature = crypto.sign(message, keyPair.getPrivate());
+
+      assertTrue(verify(message, signature));
+      message[0] ^= 1;
+      assertFalse(verify(message, signature));
+      assertTrue(signatures.add(new String(signature, Charsets.ISO_8859_1)));
+    }
+
+    // the fourth signature found the pool empty
+    assertEquals(3, crypto.getPrecomputedSignatures());
+    assertEquals(1, crypto.getFallbackSignatures());
+    assertEquals(0, crypto.getAvailableNonces());
+  }
+
+  @Test
+  public void testSign_subRange() throws Exception {
+    PrecomputedNonceCrypto crypto =
+        new PrecomputedNonceCrypto(new BouncyCastleCrypto(), new SecureRandom(), 2, 0);
+    crypto.precompute();
+    byte[] padded = "xxmessagexx".getBytes(Charsets.UTF_8);
+    byte[] message = "message".getBytes(Charsets.UTF_8);
+
+    assertTrue(verify(message, crypto.sign(padded, 2, message.length, keyPair.getPrivate())));
+    assertTrue(verify(message,
+        crypto.sign(ByteBuffer.wrap(padded, 2, message.length), keyPair.getPrivate())));
+    assertEquals(1, crypto.getPrecomputedSignatures());
+  }
+
+  @Test
+  public void testBackgroundRefill() throws Exception {
+    PrecomputedNonceCrypto crypto =
+        new PrecomputedNonceCrypto(new BouncyCastleCrypto(), new SecureRandom(), 4, 1);
+    try {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (crypto.getAvailableNonces() < 4 && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      assertEquals(4, crypto.getAvailableNonces());
+
+      byte[] message = "message".getBytes(Charsets.UTF_8);
+      assertTrue(verify(message, crypto.sign(message, keyPair.getPrivate())));
+      assertEquals(1, crypto.getPrecomputedSignatures());
+    } finally {
+      crypto.shutdown();
+    }
+  }
+
+  private boolean verify(byte[] message, byte[] signature) throws Exception {
+    Signature verifier = Signature.getInstance("SHA256withECDSA");
+    verifier.initVerify(keyPair.getPublic());
+    verifier.update(message);
+    return verifier.verify(signature);
+  }
+}
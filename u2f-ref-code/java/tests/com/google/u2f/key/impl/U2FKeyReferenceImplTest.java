@@ -61,7 +61,7 @@ public class U2FKeyReferenceImplTest extends TestVectors {
         USER_PUBLIC_KEY_ENROLL_HEX);
     when(mockKeyHandleGenerator.generateKeyHandle(APP_ID_ENROLL_SHA256, USER_KEY_PAIR_ENROLL))
     .thenReturn(KEY_HANDLE);
-    when(mockDataStore.getKeyPair(KEY_HANDLE)).thenReturn(USER_KEY_PAIR_SIGN);
+    when(mockDataStore.getKeyPair(APP_ID_SIGN_SHA256, KEY_HANDLE)).thenReturn(USER_KEY_PAIR_SIGN);
     when(mockDataStore.incrementCounter()).thenReturn(COUNTER_VALUE);
   }
 
@@ -0,0 +1,203 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ForwardingListeningExecutorService;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.u2f.TestVectors;
+import com.google.u2f.U2FException;
+import com.google.u2f.server.ChallengeGenerator;
+import com.google.u2f.server.DataStore;
+import com.google.u2f.server.U2FServer;
+import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SignSessionData;
+import com.google.u2f.server.messages.RegistrationResponse;
+import com.google.u2f.server.messages.SignResponse;
+
+public class AsyncU2FServerReferenceImplTest extends TestVectors {
+  @Mock ChallengeGenerator mockChallengeGenerator;
+  @Mock DataStore mockDataStore;
+
+  private final ListeningExecutorService ioExecutor =
+      AsyncU2FServerReferenceImpl.newBoundedExecutor("u2f-io", 2, 16);
+  private final ListeningExecutorService cpuExecutor =
+      AsyncU2FServerReferenceImpl.newBoundedExecutor("u2f-cpu", 1, 1);
+  private U2FServer u2fServer;
+
+  @Before
+  public void setup() throws Exception {
+    initMocks(this);
+
+    when(mockDataStore.getTrustedCertificates())
+        .thenReturn(ImmutableSet.<X509Certificate>of(VENDOR_CERTIFICATE));
+    when(mockDataStore.compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE, 0, COUNTER_VALUE))
+        .thenReturn(true);
+    when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME)).thenReturn(
+        ImmutableList.of(new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0)));
+
+    U2FServerReferenceImpl server = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, new BouncyCastleCrypto(), TRUSTED_DOMAINS);
+    u2fServer = new SynchronousU2FServer(
+        new AsyncU2FServerReferenceImpl(server, ioExecutor, cpuExecutor));
+  }
+
+  @After
+  public void tearDown() {
+    ioExecutor.shutdown();
+    cpuExecutor.shutdown();
+  }
+
+  @Test
+  public void testProcessRegistrationResponse() throws U2FException {
+    when(mockDataStore.takeSessionData(SESSION_ID)).thenReturn(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    RegistrationResponse registrationResponse = new RegistrationResponse(REGISTRATION_DATA_BASE64,
+        BROWSER_DATA_ENROLL_BASE64, SESSION_ID);
+
+    u2fServer.processRegistrationResponse(registrationResponse, 0L);
+
+    verify(mockDataStore).addSecurityKeyData(eq(ACCOUNT_NAME),
+        eq(new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_ENROLL_HEX, VENDOR_CERTIFICATE, 0)));
+  }
+
+  @Test
+  public void testProcessSignResponse() throws U2FException {
+    when(mockDataStore.takeSignSessionData(ImmutableSet.of(SESSION_ID))).thenReturn(
+        signSessions(new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN,
+            USER_PUBLIC_KEY_SIGN_HEX)));
+    SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+        SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, SESSION_ID, APP_ID_SIGN);
+
+    u2fServer.processSignResponse(signResponse);
+
+    verify(mockDataStore).compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE, 0,
+        COUNTER_VALUE);
+  }
+
+  @Test
+  public void testProcessSignResponse_keyLookupOnIoExecutor() throws Exception {
+    // runs the first task inline, as the caller-runs policy does when the queue is full
+    final ListeningExecutorService callerRunsOnce = new ForwardingListeningExecutorService() {
+      private final AtomicBoolean first = new AtomicBoolean(true);
+
+      @Override
+      protected ListeningExecutorService delegate() {
+        return ioExecutor;
+      }
+
+      @Override
+      public <T> ListenableFuture<T> submit(Callable<T> task) {
+        if (first.getAndSet(false)) {
+          try {
+            return Futures.immediateFuture(task.call());
+          } catch (Exception e) {
+            return Futures.immediateFailedFuture(e);
+          }
+        }
+        return super.submit(task);
+      }
+    };
+    final AtomicReference<String> lookupThread = new AtomicReference<String>();
+    when(mockDataStore.takeSignSessionData(ImmutableSet.of(SESSION_ID))).thenReturn(
+        signSessions(new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN,
+            USER_PUBLIC_KEY_SIGN_HEX)));
+    when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME)).thenAnswer(
+        new Answer<List<SecurityKeyData>>() {
+          @Override
+          public List<SecurityKeyData> answer(InvocationOnMock invocation) {
+            lookupThread.set(Thread.currentThread().getName());
+            return ImmutableList.of(new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX,
+                VENDOR_CERTIFICATE, 0));
+          }
+        });
+    U2FServerReferenceImpl server = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, new BouncyCastleCrypto(), TRUSTED_DOMAINS);
+    U2FServer u2fServer = new SynchronousU2FServer(
+        new AsyncU2FServerReferenceImpl(server, callerRunsOnce, cpuExecutor));
+    SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+        SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, SESSION_ID, APP_ID_SIGN);
+
+    u2fServer.processSignResponse(signResponse);
+
+    // the session was looked up on this thread, but the key lookup still went to the executor
+    assertTrue(lookupThread.get(), lookupThread.get().startsWith("u2f-io-"));
+  }
+
+  @Test
+  public void testProcessSignResponse_unknownSession() {
+    SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+        SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, SESSION_ID, APP_ID_SIGN);
+
+    try {
+      u2fServer.processSignResponse(signResponse);
+      fail("expected exception, but didn't get it");
+    } catch (U2FException e) {
+      assertTrue(e.getMessage().contains("Unknown session_id"));
+    }
+  }
+
+  @Test
+  public void testNewBoundedExecutor_callerRunsWhenFull() throws Exception {
+    final CountDownLatch release = new CountDownLatch(1);
+    Runnable blocker = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    // one task running, one queued: the next one is run by the submitting thread
+    cpuExecutor.submit(blocker);
+    cpuExecutor.submit(blocker);
+    final AtomicReference<Thread> ranOn = new AtomicReference<Thread>();
+    cpuExecutor.submit(new Runnable() {
+      @Override
+      public void run() {
+        ranOn.set(Thread.currentThread());
+      }
+    });
+    release.countDown();
+
+    assertEquals(Thread.currentThread(), ranOn.get());
+  }
+
+  private static Map<String, SignSessionData> signSessions(SignSessionData sessionData) {
+    return ImmutableMap.of(SESSION_ID, sessionData);
+  }
+}
@@ -0,0 +1,94 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.security.PublicKey;
+import java.util.Arrays;
+
+import org.bouncycastle.jce.interfaces.ECPublicKey;
+import org.junit.Test;
+
+import com.google.u2f.TestVectors;
+import com.google.u2f.U2FException;
+
+public class BouncyCastleCryptoTest extends TestVectors {
+  private final BouncyCastleCrypto crypto = new BouncyCastleCrypto();
+
+  @Test
+  public void testDecodePublicKey() throws U2FException {
+    PublicKey publicKey = crypto.decodePublicKey(USER_PUBLIC_KEY_SIGN_HEX);
+
+    assertTrue(Arrays.equals(USER_PUBLIC_KEY_SIGN_HEX,
+        ((ECPublicKey) publicKey).getQ().getEncoded()));
+  }
+
+  @Test
+  public void testDecodePublicKey_compressed() throws U2FException {
+    ECPublicKey publicKey = (ECPublicKey) crypto.decodePublicKey(USER_PUBLIC_KEY_SIGN_HEX);
+    byte[] compressed = new byte[33];
+    compressed[0] = (byte) (publicKey.getQ().getAffineYCoord().toBigInteger().testBit(0) ? 3 : 2);
+    System.arraycopy(USER_PUBLIC_KEY_SIGN_HEX, 1, compressed, 1, 32);
+
+    assertEquals(publicKey, crypto.decodePublicKey(compressed));
+  }
+
+  @Test
+  public void testDecodePublicKey_notOnCurve() {
+    byte[] encoded = USER_PUBLIC_KEY_SIGN_HEX.clone();
+    encoded[64] ^= 1;
+
+    assertRejected(encoded, "not on the curve");
+  }
+
+  @Test
+  public void testDecodePublicKey_wrongLength() {
+    assertRejected(Arrays.copyOf(USER_PUBLIC_KEY_SIGN_HEX, 64), "wrong length");
+    assertRejected(new byte[0], "unsupported point encoding");
+    assertRejected(new byte[] {0x00}, "unsupported point encoding");
+  }
+
+  @Test
+  public void testComputeSha256_subRange() throws U2FException {
+    byte[] padded = new byte[EXPECTED_AUTHENTICATE_SIGNED_BYTES.length + 10];
+    System.arraycopy(EXPECTED_AUTHENTICATE_SIGNED_BYTES, 0, padded, 3,
+        EXPECTED_AUTHENTICATE_SIGNED_BYTES.length);
+    byte[] expected = crypto.computeSha256(EXPECTED_AUTHENTICATE_SIGNED_BYTES);
+
+    assertTrue(Arrays.equals(expected,
+        crypto.computeSha256(padded, 3, EXPECTED_AUTHENTICATE_SIGNED_BYTES.length)));
+    ByteBuffer buffer = ByteBuffer.wrap(padded, 3, EXPECTED_AUTHENTICATE_SIGNED_BYTES.length);
+    assertTrue(Arrays.equals(expected, crypto.computeSha256(buffer)));
+    assertEquals(3, buffer.position());
+  }
+
+  @Test
+  public void testVerifySignature_subRange() throws U2FException {
+    PublicKey publicKey = crypto.decodePublicKey(USER_PUBLIC_KEY_SIGN_HEX);
+    ByteBuffer signature = ByteBuffer.wrap(SIGN_RESPONSE_DATA, 5, SIGN_RESPONSE_DATA.length - 5);
+
+    assertTrue(crypto.verifySignature(publicKey,
+        ByteBuffer.wrap(EXPECTED_AUTHENTICATE_SIGNED_BYTES), signature));
+    assertFalse(crypto.verifySignature(publicKey,
+        ByteBuffer.wrap(EXPECTED_AUTHENTICATE_SIGNED_BYTES, 1,
+            EXPECTED_AUTHENTICATE_SIGNED_BYTES.length - 1), signature));
+  }
+
+  private void assertRejected(byte[] encodedPublicKey, String reason) {
+    try {
+      crypto.decodePublicKey(encodedPublicKey);
+      fail("expected exception, but didn't get it");
+    } catch (U2FException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(reason));
+    }
+  }
+}
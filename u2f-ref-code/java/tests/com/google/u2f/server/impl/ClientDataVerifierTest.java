@@ -0,0 +1,97 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.google.u2f.TestVectors;
+import com.google.u2f.U2FException;
+import com.google.u2f.codec.ClientDataCodec;
+
+public class ClientDataVerifierTest extends TestVectors {
+  private final AppIdContext appIdContext = new AppIdContext(APP_ID_SIGN, APP_ID_SIGN_SHA256,
+      TRUSTED_DOMAINS);
+
+  @Test
+  public void testVerify() throws U2FException {
+    ClientDataVerifier.verify(BROWSER_DATA_SIGN.getBytes(Charsets.UTF_8),
+        ClientDataCodec.REQUEST_TYPE_AUTHENTICATE, SERVER_CHALLENGE_SIGN, appIdContext);
+    ClientDataVerifier.verify(BROWSER_DATA_ENROLL.getBytes(Charsets.UTF_8),
+        ClientDataCodec.REQUEST_TYPE_REGISTER, SERVER_CHALLENGE_ENROLL, appIdContext);
+  }
+
+  @Test
+  public void testVerify_wrongType() {
+    assertRejected(BROWSER_DATA_ENROLL, SERVER_CHALLENGE_ENROLL, "bad type");
+  }
+
+  @Test
+  public void testVerify_wrongChallenge() {
+    assertRejected(BROWSER_DATA_SIGN, SERVER_CHALLENGE_ENROLL, "wrong challenge");
+  }
+
+  @Test
+  public void testVerify_badOrigin() {
+    assertRejected(clientData(SERVER_CHALLENGE_SIGN_BASE64, "\"http://evil.com\""),
+        SERVER_CHALLENGE_SIGN, "is not a recognized home origin");
+  }
+
+  @Test
+  public void testVerify_missingChallenge() {
+    assertRejected("{\"typ\":\"navigator.id.getAssertion\"}", SERVER_CHALLENGE_SIGN,
+        "missing 'challenge'");
+  }
+
+  @Test
+  public void testVerify_duplicateField() {
+    assertRejected("{\"typ\":\"navigator.id.getAssertion\","
+        + "\"challenge\":\"" + SERVER_CHALLENGE_ENROLL_BASE64 + "\","
+        + "\"challenge\":\"" + SERVER_CHALLENGE_SIGN_BASE64 + "\"}",
+        SERVER_CHALLENGE_SIGN, "duplicate 'challenge'");
+  }
+
+  @Test
+  public void testVerify_oversizedField() {
+    assertRejected(clientData(SERVER_CHALLENGE_SIGN_BASE64,
+        "\"http://example.com/" + Strings.repeat("a", ClientDataVerifier.MAX_FIELD_LENGTH) + "\""),
+        SERVER_CHALLENGE_SIGN, "too long");
+  }
+
+  @Test
+  public void testVerify_nonStringField() {
+    assertRejected(clientData(SERVER_CHALLENGE_SIGN_BASE64, "{}"), SERVER_CHALLENGE_SIGN,
+        "not a string");
+  }
+
+  @Test
+  public void testVerify_notAnObject() {
+    assertRejected("[]", SERVER_CHALLENGE_SIGN, "wrong format");
+    assertRejected("{\"typ\":", SERVER_CHALLENGE_SIGN, "wrong format");
+    assertRejected(BROWSER_DATA_SIGN + "{}", SERVER_CHALLENGE_SIGN, "wrong format");
+  }
+
+  private static String clientData(String challengeBase64, String originJson) {
+    return "{\"typ\":\"navigator.id.getAssertion\","
+        + "\"challenge\":\"" + challengeBase64 + "\","
+        + "\"origin\":" + originJson + "}";
+  }
+
+  private void assertRejected(String clientData, byte[] expectedChallenge, String reason) {
+    try {
+      ClientDataVerifier.verify(clientData.getBytes(Charsets.UTF_8),
+          ClientDataCodec.REQUEST_TYPE_AUTHENTICATE, expectedChallenge, appIdContext);
+      fail("expected exception, but didn't get it");
+    } catch (U2FException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains(reason));
+    }
+  }
+}
@@ -0,0 +1,118 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static com.google.u2f.TestUtils.parseHex;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.u2f.TestVectors;
+
+public class LightweightCryptoTest extends TestVectors {
+  private final BouncyCastleCrypto delegate = new BouncyCastleCrypto();
+  private final LightweightCrypto crypto = new LightweightCrypto(delegate);
+
+  @Test
+  public void testVerifySignature() throws Exception {
+    PublicKey publicKey = crypto.decodePublicKey(USER_PUBLIC_KEY_SIGN_HEX);
+    byte[] alteredBytes = EXPECTED_AUTHENTICATE_SIGNED_BYTES.clone();
+    alteredBytes[0] ^= 1;
+
+    assertTrue(crypto.verifySignature(publicKey, EXPECTED_AUTHENTICATE_SIGNED_BYTES,
+        SIGNATURE_AUTHENTICATE));
+    assertFalse(crypto.verifySignature(publicKey, alteredBytes, SIGNATURE_AUTHENTICATE));
+    assertTrue(crypto.verifySignature(publicKey,
+        ByteBuffer.wrap(EXPECTED_AUTHENTICATE_SIGNED_BYTES),
+        ByteBuffer.wrap(SIGN_RESPONSE_DATA, 5, SIGN_RESPONSE_DATA.length - 5)));
+  }
+
+  @Test
+  public void testVerifySignature_agreesWithDelegate() throws Exception {
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"), new SecureRandom());
+    for (int i = 0; i < 10; i++) {
+      KeyPair keyPair = keyPairGenerator.generateKeyPair();
+      byte[] message = ("message " + i).getBytes(Charsets.UTF_8);
+      Signature signer = Signature.getInstance("SHA256withECDSA");
+      signer.initSign(keyPair.getPrivate());
+      signer.update(message);
+      byte[] signature = signer.sign();
+
+      assertTrue(crypto.verifySignature(keyPair.getPublic(), message, signature));
+      assertTrue(delegate.verifySignature(keyPair.getPublic(), message, signature));
+      message[0] ^= 1;
+      assertFalse(crypto.verifySignature(keyPair.getPublic(), message, signature));
+    }
+  }
+
+  @Test
+  public void testComputeSha256() throws Exception {
+    byte[] padded = new byte[BROWSER_DATA_SIGN.length() + 4];
+    byte[] browserData = BROWSER_DATA_SIGN.getBytes(Charsets.UTF_8);
+    System.arraycopy(browserData, 0, padded, 2, browserData.length);
+
+    assertArrayEquals(delegate.computeSha256(browserData), crypto.computeSha256(browserData));
+    assertArrayEquals(delegate.computeSha256(browserData),
+        crypto.computeSha256(padded, 2, browserData.length));
+    assertArrayEquals(delegate.computeSha256(browserData),
+        crypto.computeSha256(ByteBuffer.wrap(padded, 2, browserData.length)));
+  }
+
+  @Test
+  public void testDecodeStrictDerSignature() {
+    BigInteger[] rs = decode("3007020101020200ff");
+
+    assertEquals(BigInteger.ONE, rs[0]);
+    assertEquals(BigInteger.valueOf(0xff), rs[1]);
+  }
+
+  @Test
+  public void testDecodeStrictDerSignature_nonCanonical() {
+    assertNull("trailing byte", decode("3006020101020101" + "00"));
+    assertNull("wrong sequence length", decode("3007020101020101"));
+    assertNull("long form length", decode("308106020101020101"));
+    assertNull("unneeded zero byte", decode("30070201010202007f"));
+    assertNull("negative", decode("3006020101020181"));
+    assertNull("empty integer", decode("30050201010200"));
+    assertNull("not an integer", decode("3006020101030101"));
+    assertNull("not a sequence", decode("3106020101020101"));
+    assertNull("one integer", decode("3003020101"));
+    assertNull("empty", decode(""));
+  }
+
+  @Test
+  public void testVerifySignature_nonCanonicalRejected() throws Exception {
+    PublicKey publicKey = crypto.decodePublicKey(USER_PUBLIC_KEY_SIGN_HEX);
+    byte[] trailing = new byte[SIGNATURE_AUTHENTICATE.length + 1];
+    System.arraycopy(SIGNATURE_AUTHENTICATE, 0, trailing, 0, SIGNATURE_AUTHENTICATE.length);
+
+    assertFalse(crypto.verifySignature(publicKey, EXPECTED_AUTHENTICATE_SIGNED_BYTES, trailing));
+  }
+
+  private static BigInteger[] decode(String hex) {
+    byte[] bytes = parseHex(hex);
+    // at an offset, to check that the range is respected
+    byte[] padded = new byte[bytes.length + 2];
+    System.arraycopy(bytes, 0, padded, 1, bytes.length);
+    return LightweightCrypto.decodeStrictDerSignature(padded, 1, bytes.length);
+  }
+}
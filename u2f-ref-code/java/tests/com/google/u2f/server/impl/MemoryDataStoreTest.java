@@ -0,0 +1,216 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+import com.google.u2f.TestVectors;
+import com.google.u2f.server.SessionIdGenerator;
+import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SignSessionData;
+
+public class MemoryDataStoreTest extends TestVectors {
+  @Mock SessionIdGenerator mockSessionIdGenerator;
+
+  private MemoryDataStore dataStore;
+  private final AtomicLong nanos = new AtomicLong();
+  private final Ticker ticker = new Ticker() {
+    @Override
+    public long read() {
+      return nanos.get();
+    }
+  };
+  private final SecurityKeyData securityKeyData =
+      new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0);
+
+  @Before
+  public void setup() {
+    initMocks(this);
+    dataStore = new MemoryDataStore(mockSessionIdGenerator);
+    dataStore.addSecurityKeyData(ACCOUNT_NAME, securityKeyData);
+  }
+
+  @Test
+  public void testGetSecurityKeyData_byKeyHandle() {
+    assertSame(securityKeyData, dataStore.getSecurityKeyData(ACCOUNT_NAME, KEY_HANDLE.clone()));
+    assertNull(dataStore.getSecurityKeyData(ACCOUNT_NAME, KEY_HANDLE_2));
+    assertNull(dataStore.getSecurityKeyData("other@example.com", KEY_HANDLE));
+  }
+
+  @Test
+  public void testUpdateSecurityKeyCounter() {
+    dataStore.updateSecurityKeyCounter(ACCOUNT_NAME, USER_PUBLIC_KEY_SIGN_HEX.clone(), 7);
+
+    assertEquals(7, dataStore.getSecurityKeyData(ACCOUNT_NAME, KEY_HANDLE).getCounter());
+  }
+
+  @Test
+  public void testCompareAndSetCounter() {
+    assertTrue(dataStore.compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE.clone(), 0, 5));
+    assertFalse(dataStore.compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE, 0, 6));
+    assertFalse(dataStore.compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE_2, 5, 6));
+
+    assertEquals(5, dataStore.getSecurityKeyData(ACCOUNT_NAME, KEY_HANDLE).getCounter());
+  }
+
+  @Test
+  public void testRemoveSecurityKey() {
+    dataStore.removeSecuityKey(ACCOUNT_NAME, USER_PUBLIC_KEY_SIGN_HEX.clone());
+
+    assertNull(dataStore.getSecurityKeyData(ACCOUNT_NAME, KEY_HANDLE));
+    assertTrue(dataStore.getSecurityKeyData(ACCOUNT_NAME).isEmpty());
+  }
+
+  @Test
+  public void testSessionExpiry() {
+    dataStore = new MemoryDataStore(mockSessionIdGenerator, 1000, ticker);
+    when(mockSessionIdGenerator.generateSessionId(ACCOUNT_NAME)).thenReturn("1", "2", "3");
+    EnrollSessionData enrollSessionData =
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL);
+    SignSessionData signSessionData =
+        new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN,
+            USER_PUBLIC_KEY_SIGN_HEX);
+
+    dataStore.storeSessionData(enrollSessionData);
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(600));
+    dataStore.storeSessionData(signSessionData);
+
+    assertSame(enrollSessionData, dataStore.getEnrollSessionData("1"));
+    assertSame(signSessionData, dataStore.getSignSessionData("2"));
+    assertEquals(2, dataStore.getLiveSessionCount());
+
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(400));
+    // rejected as soon as it expires, whether or not it has been removed yet
+    assertNull(dataStore.getEnrollSessionData("1"));
+    assertSame(signSessionData, dataStore.getSignSessionData("2"));
+
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(100));
+    dataStore.storeSessionData(enrollSessionData);
+    assertEquals(2, dataStore.getLiveSessionCount());
+    assertEquals(1, dataStore.getExpiredSessionCount());
+
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(10));
+    assertNull(dataStore.getSignSessionData("2"));
+    assertEquals(0, dataStore.getLiveSessionCount());
+    assertEquals(3, dataStore.getExpiredSessionCount());
+  }
+
+  @Test
+  public void testTakeSessionData() {
+    when(mockSessionIdGenerator.generateSessionId(ACCOUNT_NAME)).thenReturn("1", "2", "3", "4");
+    EnrollSessionData enrollSessionData =
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL);
+    SignSessionData signSessionData = new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN,
+        SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX);
+    dataStore.storeSessionData(enrollSessionData);
+    dataStore.storeSessionData(signSessionData);
+    dataStore.storeSessionData(signSessionData);
+
+    assertSame(enrollSessionData, dataStore.takeSessionData("1"));
+    assertNull(dataStore.takeSessionData("1"));
+    assertNull(dataStore.getEnrollSessionData("1"));
+
+    dataStore.storeSessionData(enrollSessionData);
+    assertEquals(ImmutableMap.of("2", signSessionData, "3", signSessionData),
+        dataStore.takeSignSessionData(ImmutableList.of("1", "2", "3", "4")));
+    assertTrue(dataStore.takeSignSessionData(ImmutableList.of("2", "3")).isEmpty());
+    // not a sign session, so it is left for the registration it belongs to
+    assertSame(enrollSessionData, dataStore.getEnrollSessionData("4"));
+  }
+
+  @Test
+  public void testTakeSessionData_freesSession() {
+    when(mockSessionIdGenerator.generateSessionId(ACCOUNT_NAME)).thenReturn("1");
+    dataStore.storeSessionData(new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN,
+        SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX));
+    dataStore.takeSessionData("1");
+
+    // the expiry wheel keeps only a token with the session's id until the session would have
+    // expired, and nothing else in the store refers to the session
+    assertFalse(dataStore.containsSession("1"));
+    assertEquals(ImmutableList.of("1"), dataStore.getScheduledSessionIds());
+  }
+
+  @Test
+  public void testConcurrentWrites() throws Exception {
+    final int threads = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    final int keysPerThread = 200;
+    final String[] accounts = {"a@example.com", "b@example.com", "c@example.com"};
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<Void>> writers = Lists.newArrayList();
+      for (int t = 0; t < threads; t++) {
+        final int thread = t;
+        writers.add(executor.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            start.await();
+            for (int i = 0; i < keysPerThread; i++) {
+              String account = accounts[i % accounts.length];
+              byte[] id = Ints.toByteArray(thread * keysPerThread + i);
+              dataStore.addSecurityKeyData(account,
+                  new SecurityKeyData(0L, id, id, VENDOR_CERTIFICATE, 0));
+              // the key that was just added is already indexed
+              assertArrayEquals(id, dataStore.getSecurityKeyData(account, id).getKeyHandle());
+              dataStore.updateSecurityKeyCounter(account, id, i + 1);
+              if (i % 2 == 1) {
+                dataStore.removeSecuityKey(account, id);
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      start.countDown();
+      for (Future<Void> writer : writers) {
+        writer.get();
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    int total = 0;
+    for (String account : accounts) {
+      for (SecurityKeyData key : dataStore.getSecurityKeyData(account)) {
+        int i = Ints.fromByteArray(key.getKeyHandle()) % keysPerThread;
+        assertEquals(0, i % 2);
+        assertEquals(i + 1, key.getCounter());
+        assertSame(key, dataStore.getSecurityKeyData(account, key.getKeyHandle()));
+        total++;
+      }
+    }
+    // nothing lost, nothing left behind
+    assertEquals(threads * keysPerThread / 2, total);
+  }
+}
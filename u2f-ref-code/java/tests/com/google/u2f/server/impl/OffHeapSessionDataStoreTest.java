@@ -0,0 +1,190 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.u2f.TestVectors;
+import com.google.u2f.server.SessionIdGenerator;
+import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.MultiKeySignSessionData;
+import com.google.u2f.server.data.SecurityKeyData;
+import com.google.u2f.server.data.SignSessionData;
+
+public class OffHeapSessionDataStoreTest extends TestVectors {
+  private final AtomicInteger sessionIdCounter = new AtomicInteger();
+  private final SessionIdGenerator sessionIdGenerator = new SessionIdGenerator() {
+    @Override
+    public String generateSessionId(String accountName) {
+      return "sessionId_" + sessionIdCounter.incrementAndGet() + "_" + accountName;
+    }
+  };
+  private final AtomicLong nanos = new AtomicLong();
+  private final Ticker ticker = new Ticker() {
+    @Override
+    public long read() {
+      return nanos.get();
+    }
+  };
+  private final MemoryDataStore delegate = new MemoryDataStore(sessionIdGenerator);
+
+  private OffHeapSessionDataStore newDataStore(int maxSessions) {
+    return new OffHeapSessionDataStore(delegate, sessionIdGenerator, maxSessions, 1000, ticker);
+  }
+
+  @Test
+  public void testStoreAndTake() {
+    OffHeapSessionDataStore dataStore = newDataStore(100);
+    String enrollSessionId = dataStore.storeSessionData(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    String signSessionId = dataStore.storeSessionData(new SignSessionData(ACCOUNT_NAME,
+        APP_ID_SIGN, SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX, KEY_HANDLE));
+
+    EnrollSessionData enrollSessionData = dataStore.getEnrollSessionData(enrollSessionId);
+    assertEquals(EnrollSessionData.class, enrollSessionData.getClass());
+    assertEquals(ACCOUNT_NAME, enrollSessionData.getAccountName());
+    assertEquals(APP_ID_ENROLL, enrollSessionData.getAppId());
+    assertArrayEquals(SERVER_CHALLENGE_ENROLL, enrollSessionData.getChallenge());
+
+    SignSessionData signSessionData = (SignSessionData) dataStore.takeSessionData(signSessionId);
+    assertEquals(APP_ID_SIGN, signSessionData.getAppId());
+    assertArrayEquals(SERVER_CHALLENGE_SIGN, signSessionData.getChallenge());
+    assertArrayEquals(USER_PUBLIC_KEY_SIGN_HEX, signSessionData.getPublicKey());
+    assertArrayEquals(KEY_HANDLE, signSessionData.getKeyHandle());
+    assertNull(dataStore.takeSessionData(signSessionId));
+
+    // enroll sessions are left alone by the bulk sign session take
+    assertTrue(dataStore.takeSignSessionData(ImmutableList.of(enrollSessionId)).isEmpty());
+    assertNotNull(dataStore.getEnrollSessionData(enrollSessionId));
+    assertEquals(1, dataStore.getLiveSessionCount());
+    assertEquals(0, dataStore.getOverflowSessionCount());
+  }
+
+  @Test
+  public void testSessionExpiry() {
+    OffHeapSessionDataStore dataStore = newDataStore(100);
+    String sessionId = dataStore.storeSessionData(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+
+    assertNull(dataStore.getEnrollSessionData(sessionId));
+    assertEquals(0, dataStore.getLiveSessionCount());
+    assertEquals(1, dataStore.getExpiredSessionCount());
+  }
+
+  @Test
+  public void testOverflowToDelegate() {
+    OffHeapSessionDataStore dataStore = newDataStore(100);
+    MultiKeySignSessionData multiKeySessionData = new MultiKeySignSessionData(ACCOUNT_NAME,
+        APP_ID_SIGN, SERVER_CHALLENGE_SIGN, ImmutableList.of(KEY_HANDLE, KEY_HANDLE_2));
+    String sessionId = dataStore.storeSessionData(multiKeySessionData);
+
+    assertSame(multiKeySessionData, dataStore.getSignSessionData(sessionId));
+    assertEquals(1, dataStore.getOverflowSessionCount());
+    assertEquals(0, dataStore.getLiveSessionCount());
+    Map<String, SignSessionData> taken =
+        dataStore.takeSignSessionData(ImmutableList.of(sessionId));
+    assertSame(multiKeySessionData, taken.get(sessionId));
+    assertNull(delegate.getSignSessionData(sessionId));
+  }
+
+  @Test
+  public void testFull() {
+    // one slot per partition
+    OffHeapSessionDataStore dataStore = newDataStore(1);
+    List<String> sessionIds = Lists.newArrayList();
+    for (int i = 0; i < 100; i++) {
+      sessionIds.add(dataStore.storeSessionData(
+          new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL)));
+    }
+
+    assertTrue(dataStore.getLiveSessionCount() <= 16);
+    assertEquals(100, dataStore.getLiveSessionCount() + dataStore.getOverflowSessionCount());
+    for (String sessionId : sessionIds) {
+      assertNotNull(dataStore.getEnrollSessionData(sessionId));
+    }
+
+    // expired sessions make way for new ones
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+    long overflow = dataStore.getOverflowSessionCount();
+    dataStore.storeSessionData(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    assertEquals(overflow, dataStore.getOverflowSessionCount());
+  }
+
+  @Test
+  public void testFull_sweepsOncePerExpiry() {
+    // one slot per partition
+    OffHeapSessionDataStore dataStore = newDataStore(1);
+    for (int i = 0; i < 1000; i++) {
+      dataStore.storeSessionData(
+          new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    }
+    // at most one full sweep per partition until something in it expires, not one per store
+    assertTrue(dataStore.getFullSweepCount() <= 16);
+
+    nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(1000));
+    long overflow = dataStore.getOverflowSessionCount();
+    dataStore.storeSessionData(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    assertEquals(overflow, dataStore.getOverflowSessionCount());
+  }
+
+  @Test
+  public void testManySessions() {
+    OffHeapSessionDataStore dataStore = newDataStore(8192);
+    List<String> sessionIds = Lists.newArrayList();
+    for (int i = 0; i < 4000; i++) {
+      sessionIds.add(dataStore.storeSessionData(new SignSessionData("user" + i + "@example.com",
+          APP_ID_SIGN, SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX, KEY_HANDLE)));
+    }
+    // take every other session, which leaves holes all over the index
+    for (int i = 0; i < sessionIds.size(); i += 2) {
+      assertNotNull(dataStore.takeSessionData(sessionIds.get(i)));
+    }
+
+    for (int i = 0; i < sessionIds.size(); i++) {
+      EnrollSessionData sessionData = dataStore.getEnrollSessionData(sessionIds.get(i));
+      if (i % 2 == 0) {
+        assertNull(sessionData);
+      } else {
+        assertEquals("user" + i + "@example.com", sessionData.getAccountName());
+      }
+    }
+    assertEquals(2000, dataStore.getLiveSessionCount());
+    assertEquals(0, dataStore.getOverflowSessionCount());
+  }
+
+  @Test
+  public void testSecurityKeysGoToDelegate() {
+    OffHeapSessionDataStore dataStore = newDataStore(100);
+    SecurityKeyData securityKeyData =
+        new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0);
+    dataStore.addSecurityKeyData(ACCOUNT_NAME, securityKeyData);
+
+    assertSame(securityKeyData, delegate.getSecurityKeyData(ACCOUNT_NAME, KEY_HANDLE));
+    assertTrue(dataStore.compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE, 0, 1));
+    assertEquals(1, delegate.getSecurityKeyData(ACCOUNT_NAME, KEY_HANDLE).getCounter());
+  }
+}
@@ -0,0 +1,117 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigInteger;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+import org.bouncycastle.math.ec.ECPoint;
+import org.junit.Test;
+
+import com.google.common.base.Charsets;
+import com.google.u2f.TestVectors;
+import com.google.u2f.codec.RawMessageCodec;
+import com.google.u2f.key.messages.AuthenticateResponse;
+import com.google.u2f.server.impl.PrecomputedKeyCrypto.PointTable;
+
+public class PrecomputedKeyCryptoTest extends TestVectors {
+  private final BouncyCastleCrypto delegate = new BouncyCastleCrypto();
+
+  @Test
+  public void testSumOfMultiplies() {
+    ECPoint g = BouncyCastleCrypto.P256.getG();
+    ECPoint q = g.multiply(BigInteger.valueOf(0x1234567));
+    PointTable tableG = new PointTable(g, PrecomputedKeyCrypto.GENERATOR_WINDOW);
+    PointTable tableQ = new PointTable(q, PrecomputedKeyCrypto.KEY_WINDOW);
+    Random random = new Random(42);
+    for (int i = 0; i < 20; i++) {
+      BigInteger a = new BigInteger(256, random);
+      BigInteger b = new BigInteger(256, random);
+
+      assertEquals(g.multiply(a).add(q.multiply(b)).normalize(),
+          PrecomputedKeyCrypto.sumOfMultiplies(tableG, a, tableQ, b).normalize());
+    }
+  }
+
+  @Test
+  public void testVerifySignature_hotKey() throws Exception {
+    PrecomputedKeyCrypto crypto = new PrecomputedKeyCrypto(delegate,
+        PrecomputedKeyCrypto.DEFAULT_MEMORY_BUDGET_BYTES, 2);
+    PublicKey publicKey = delegate.decodePublicKey(USER_PUBLIC_KEY_SIGN_HEX);
+    AuthenticateResponse response = RawMessageCodec.decodeAuthenticateResponse(
+        Base64.decodeBase64(SIGN_RESPONSE_DATA_BASE64));
+    byte[] signedBytes = RawMessageCodec.encodeAuthenticateSignedBytes(APP_ID_SIGN_SHA256,
+        response.getUserPresence(), response.getCounter(),
+        delegate.computeSha256(BROWSER_DATA_SIGN.getBytes(Charsets.UTF_8)));
+    byte[] alteredBytes = signedBytes.clone();
+    alteredBytes[0] ^= 1;
+
+    for (int i = 0; i < 3; i++) {
+      assertTrue(crypto.verifySignature(publicKey, signedBytes, response.getSignature()));
+      assertFalse(crypto.verifySignature(publicKey, alteredBytes, response.getSignature()));
+    }
+
+    // admitted on its second use, and served from the table from then on
+    assertEquals(Long.valueOf(5),
+        crypto.getHitCounts().get(Hex.encodeHexString(USER_PUBLIC_KEY_SIGN_HEX)));
+  }
+
+  @Test
+  public void testVerifySignature_agreesWithDelegate() throws Exception {
+    PrecomputedKeyCrypto crypto = new PrecomputedKeyCrypto(delegate,
+        PrecomputedKeyCrypto.DEFAULT_MEMORY_BUDGET_BYTES, 1);
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"), new SecureRandom());
+    for (int i = 0; i < 10; i++) {
+      KeyPair keyPair = keyPairGenerator.generateKeyPair();
+      byte[] message = ("message " + i).getBytes(Charsets.UTF_8);
+      Signature signer = Signature.getInstance("SHA256withECDSA");
+      signer.initSign(keyPair.getPrivate());
+      signer.update(message);
+      byte[] signature = signer.sign();
+
+      assertTrue(crypto.verifySignature(keyPair.getPublic(), message, signature));
+      assertTrue(delegate.verifySignature(keyPair.getPublic(), message, signature));
+      message[0] ^= 1;
+      assertFalse(crypto.verifySignature(keyPair.getPublic(), message, signature));
+    }
+    assertEquals(10, crypto.getHitCounts().size());
+  }
+
+  @Test
+  public void testVerifySignature_memoryBudget() throws Exception {
+    // room for the tables of at most four keys
+    PrecomputedKeyCrypto crypto = new PrecomputedKeyCrypto(delegate,
+        4 * 2 * PointTable.size(PrecomputedKeyCrypto.KEY_WINDOW) * 200, 1);
+    KeyPairGenerator keyPairGenerator = KeyPairGenerator.getInstance("EC");
+    keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"), new SecureRandom());
+    byte[] message = "message".getBytes(Charsets.UTF_8);
+    for (int i = 0; i < 12; i++) {
+      KeyPair keyPair = keyPairGenerator.generateKeyPair();
+      Signature signer = Signature.getInstance("SHA256withECDSA");
+      signer.initSign(keyPair.getPrivate());
+      signer.update(message);
+
+      assertTrue(crypto.verifySignature(keyPair.getPublic(), message, signer.sign()));
+    }
+
+    assertTrue(crypto.getHitCounts().size() <= 4);
+    assertTrue(crypto.stats().evictionCount() >= 8);
+  }
+}
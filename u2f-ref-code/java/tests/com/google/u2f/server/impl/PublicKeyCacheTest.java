@@ -0,0 +1,76 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+
+import com.google.u2f.TestVectors;
+import com.google.u2f.server.Crypto;
+
+public class PublicKeyCacheTest extends TestVectors {
+  @Mock Crypto mockCrypto;
+
+  private PublicKeyCache publicKeyCache;
+
+  @Before
+  public void setup() throws Exception {
+    initMocks(this);
+
+    when(mockCrypto.decodePublicKey(USER_PUBLIC_KEY_SIGN_HEX)).thenReturn(USER_PUBLIC_KEY_SIGN);
+    when(mockCrypto.decodePublicKey(USER_PUBLIC_KEY_ENROLL_HEX)).thenReturn(USER_PUBLIC_KEY_ENROLL);
+    publicKeyCache = new PublicKeyCache(mockCrypto, 1);
+  }
+
+  @Test
+  public void testGetPublicKey_decodesOnce() throws Exception {
+    assertSame(USER_PUBLIC_KEY_SIGN, publicKeyCache.getPublicKey(USER_PUBLIC_KEY_SIGN_HEX));
+    assertSame(USER_PUBLIC_KEY_SIGN, publicKeyCache.getPublicKey(USER_PUBLIC_KEY_SIGN_HEX.clone()));
+
+    verify(mockCrypto, times(1)).decodePublicKey(USER_PUBLIC_KEY_SIGN_HEX);
+    assertEquals(1, publicKeyCache.stats().hitCount());
+    assertEquals(1, publicKeyCache.stats().missCount());
+  }
+
+  @Test
+  public void testGetPublicKey_realDecoding() throws Exception {
+    PublicKeyCache cache = new PublicKeyCache(new BouncyCastleCrypto());
+
+    assertEquals(USER_PUBLIC_KEY_SIGN, cache.getPublicKey(USER_PUBLIC_KEY_SIGN_HEX));
+    assertSame(cache.getPublicKey(USER_PUBLIC_KEY_SIGN_HEX),
+        cache.getPublicKey(USER_PUBLIC_KEY_SIGN_HEX));
+  }
+
+  @Test
+  public void testInvalidate() throws Exception {
+    publicKeyCache.getPublicKey(USER_PUBLIC_KEY_SIGN_HEX);
+    publicKeyCache.invalidate(USER_PUBLIC_KEY_SIGN_HEX);
+    publicKeyCache.getPublicKey(USER_PUBLIC_KEY_SIGN_HEX);
+
+    verify(mockCrypto, times(2)).decodePublicKey(USER_PUBLIC_KEY_SIGN_HEX);
+  }
+
+  @Test
+  public void testEviction() throws Exception {
+    publicKeyCache.getPublicKey(USER_PUBLIC_KEY_SIGN_HEX);
+    publicKeyCache.getPublicKey(USER_PUBLIC_KEY_ENROLL_HEX);
+    publicKeyCache.getPublicKey(USER_PUBLIC_KEY_SIGN_HEX);
+
+    assertEquals(1, publicKeyCache.size());
+    assertTrue(publicKeyCache.stats().evictionCount() >= 1);
+    verify(mockCrypto, times(2)).decodePublicKey(USER_PUBLIC_KEY_SIGN_HEX);
+  }
+}
@@ -0,0 +1,69 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.Provider;
+import java.security.Security;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.u2f.TestVectors;
+import com.google.u2f.U2FException;
+import com.google.u2f.server.impl.SignatureProviderSelector.Selection;
+
+public class SignatureProviderSelectorTest extends TestVectors {
+  private final Provider bouncyCastle = new BouncyCastleCrypto().getSignatureProvider();
+
+  @Test
+  public void testSelect_benchmark() throws U2FException {
+    SignatureProviderSelector selector = new SignatureProviderSelector(
+        ImmutableList.of(bouncyCastle), 2);
+
+    Selection selection = selector.select(null);
+
+    assertEquals(bouncyCastle, selection.getProvider());
+    assertFalse(selection.isOverride());
+    assertTrue(selection.getNanosPerVerification().containsKey(bouncyCastle.getName()));
+  }
+
+  @Test
+  public void testSelect_installedProviders() throws U2FException {
+    Selection selection = new SignatureProviderSelector().select(null);
+
+    // Bouncy Castle and, on current JDKs, SunEC
+    assertTrue(selection.getNanosPerVerification().containsKey(bouncyCastle.getName()));
+    assertTrue(selection.getNanosPerVerification().containsKey(
+        selection.getProvider().getName()));
+  }
+
+  @Test
+  public void testSelect_override() throws U2FException {
+    SignatureProviderSelector selector = new SignatureProviderSelector(
+        ImmutableList.copyOf(Security.getProviders()), 2);
+
+    Selection selection = selector.select(bouncyCastle.getName());
+
+    assertEquals(bouncyCastle, selection.getProvider());
+    assertTrue(selection.isOverride());
+  }
+
+  @Test
+  public void testSelect_unknownOverride() {
+    try {
+      new SignatureProviderSelector(ImmutableList.of(bouncyCastle), 2).select("NoSuchProvider");
+      fail("expected exception, but didn't get it");
+    } catch (U2FException e) {
+      assertTrue(e.getMessage().contains("NoSuchProvider"));
+    }
+  }
+}
@@ -0,0 +1,57 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class ThreadLocalEngineTest {
+  private final ThreadLocalEngine<MessageDigest> digests = new ThreadLocalEngine<MessageDigest>() {
+    @Override
+    protected MessageDigest create() throws GeneralSecurityException {
+      return MessageDigest.getInstance("SHA-256");
+    }
+  };
+
+  @Test
+  public void testReusedWithinThread() throws Exception {
+    assertSame(digests.get(), digests.get());
+  }
+
+  @Test
+  public void testNotSharedAcrossThreads() throws Exception {
+    final AtomicReference<MessageDigest> other = new AtomicReference<MessageDigest>();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          other.set(digests.get());
+        } catch (GeneralSecurityException e) {
+          throw new AssertionError(e);
+        }
+      }
+    };
+    thread.start();
+    thread.join();
+
+    assertNotSame(digests.get(), other.get());
+  }
+
+  @Test
+  public void testDiscard() throws Exception {
+    MessageDigest digest = digests.get();
+    digests.discard();
+
+    assertNotSame(digest, digests.get());
+  }
+}
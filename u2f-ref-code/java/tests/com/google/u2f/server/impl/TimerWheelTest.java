@@ -0,0 +1,67 @@
+// Copyright 2014 Google Inc. All rights reserved.
+//
+// Use of this source code is governed by a BSD-style
+// license that can be found in the LICENSE file or at
+// https://developers.google.com/open-source/licenses/bsd
+
+package com.google.u2f.server.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TimerWheelTest {
+  private static final long START = 1000;
+
+  private final TimerWheel<String> wheel = new TimerWheel<String>(10, 4, START);
+
+  @Test
+  public void testAdvance() {
+    wheel.schedule("a", START + 15);
+    wheel.schedule("b", START + 20);
+    wheel.schedule("c", START + 35);
+
+    assertTrue(wheel.advance(START + 14).isEmpty());
+    // expiry is rounded up to the next tick
+    assertTrue(wheel.advance(START + 19).isEmpty());
+    assertEquals(ImmutableList.of("a", "b"), wheel.advance(START + 20));
+    assertEquals(1, wheel.size());
+    assertEquals(ImmutableList.of("c"), wheel.items());
+    assertEquals(ImmutableList.of("c"), wheel.advance(START + 40));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testAdvance_beyondOneTurn() {
+    // same slot as "a", but one turn of the wheel later
+    wheel.schedule("a", START + 10);
+    wheel.schedule("later", START + 50);
+
+    assertEquals(ImmutableList.of("a"), wheel.advance(START + 10));
+    assertTrue(wheel.advance(START + 49).isEmpty());
+    assertEquals(ImmutableList.of("later"), wheel.advance(START + 50));
+  }
+
+  @Test
+  public void testAdvance_longPause() {
+    wheel.schedule("a", START + 10);
+    wheel.schedule("b", START + 30);
+    wheel.schedule("c", START + 1000);
+
+    assertEquals(ImmutableList.of("a", "b"), wheel.advance(START + 500));
+    wheel.schedule("d", START + 510);
+    assertEquals(ImmutableList.of("d"), wheel.advance(START + 510));
+    assertEquals(ImmutableList.of("c"), wheel.advance(START + 1000));
+  }
+
+  @Test
+  public void testSchedule_pastDeadline() {
+    wheel.advance(START + 30);
+    wheel.schedule("late", START + 5);
+
+    assertEquals(ImmutableList.of("late"), wheel.advance(START + 40));
+  }
+}
@@ -6,25 +6,44 @@
 
 package com.google.u2f.server.impl;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
 import java.security.cert.X509Certificate;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
 
+import org.apache.commons.codec.binary.Base64;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Matchers;
 import org.mockito.Mock;
 
+import com.google.common.base.Ticker;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.u2f.TestVectors;
 import com.google.u2f.U2FException;
 import com.google.u2f.server.ChallengeGenerator;
@@ -32,13 +51,19 @@ import com.google.u2f.server.Crypto;
 import com.google.u2f.server.DataStore;
 import com.google.u2f.server.SessionIdGenerator;
 import com.google.u2f.server.U2FServer;
+import com.google.u2f.server.VerificationException;
+import com.google.u2f.server.VerificationException.Stage;
 import com.google.u2f.server.data.EnrollSessionData;
+import com.google.u2f.server.data.MultiKeySignSessionData;
 import com.google.u2f.server.data.SecurityKeyData;
 import com.google.u2f.server.data.SignSessionData;
+import com.google.u2f.server.messages.MultiKeySignRequest;
+import com.google.u2f.server.messages.RegisteredKey;
 import com.google.u2f.server.messages.RegistrationRequest;
 import com.google.u2f.server.messages.RegistrationResponse;
 import com.google.u2f.server.messages.SignRequest;
 import com.google.u2f.server.messages.SignResponse;
+import com.google.u2f.server.messages.SignResult;
 
 public class U2FServerReferenceImplTest extends TestVectors {
   @Mock ChallengeGenerator mockChallengeGenerator;
@@ -60,6 +85,8 @@ public class U2FServerReferenceImplTest extends TestVectors {
     when(mockSessionIdGenerator.generateSessionId(ACCOUNT_NAME)).thenReturn(SESSION_ID);
     when(mockDataStore.storeSessionData(Matchers.<EnrollSessionData>any())).thenReturn(SESSION_ID);
     when(mockDataStore.getTrustedCertificates()).thenReturn(trustedCertificates);
+    when(mockDataStore.compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE, 0, COUNTER_VALUE))
+        .thenReturn(true);
     when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME)).thenReturn(
         ImmutableList.of(new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0)));
   }
@@ -75,6 +102,18 @@ public class U2FServerReferenceImplTest extends TestVectors {
     assertEquals("https://example.com", U2FServerReferenceImpl.canonicalizeOrigin("https://example.com/foo"));
   }
   
+  @Test
+  public void testGetAppIdContext() throws U2FException {
+    U2FServerReferenceImpl server = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+
+    AppIdContext appIdContext = server.getAppIdContext(APP_ID_SIGN);
+
+    assertArrayEquals(APP_ID_SIGN_SHA256, appIdContext.getAppIdSha256());
+    assertTrue(appIdContext.isAllowedOrigin(ORIGIN));
+    assertSame(appIdContext, server.getAppIdContext(APP_ID_SIGN));
+  }
+
   @Test
   public void testGetRegistrationRequest() throws U2FException {
     u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
@@ -88,7 +127,7 @@ public class U2FServerReferenceImplTest extends TestVectors {
 
   @Test
   public void testProcessRegistrationResponse() throws U2FException {
-	when(mockDataStore.getEnrollSessionData(SESSION_ID)).thenReturn(
+	when(mockDataStore.takeSessionData(SESSION_ID)).thenReturn(
         new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
     u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
         mockDataStore, cryto, TRUSTED_DOMAINS);
@@ -102,9 +141,83 @@ public class U2FServerReferenceImplTest extends TestVectors {
         eq(new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_ENROLL_HEX, VENDOR_CERTIFICATE, 0)));
   }
 
+  @Test
+  public void testProcessRegistrationResponse_cachedAttestationCertificate() throws U2FException {
+    when(mockDataStore.takeSessionData(SESSION_ID)).thenReturn(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    final AtomicLong nanos = new AtomicLong();
+    AttestationCertificateCache attestationCertificates =
+        new AttestationCertificateCache(10, 1000, new Ticker() {
+          @Override
+          public long read() {
+            return nanos.get();
+          }
+        });
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator, mockDataStore, cryto,
+        TRUSTED_DOMAINS, new PublicKeyCache(cryto), MoreExecutors.sameThreadExecutor(),
+        attestationCertificates);
+    RegistrationResponse registrationResponse = new RegistrationResponse(REGISTRATION_DATA_BASE64,
+        BROWSER_DATA_ENROLL_BASE64, SESSION_ID);
+
+    u2fServer.processRegistrationResponse(registrationResponse, 0L);
+    u2fServer.processRegistrationResponse(registrationResponse, 0L);
+    nanos.addAndGet(TimeUnit.SECONDS.toNanos(1));
+    u2fServer.processRegistrationResponse(registrationResponse, 0L);
+
+    verify(mockDataStore, times(3)).addSecurityKeyData(eq(ACCOUNT_NAME),
+        eq(new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_ENROLL_HEX, VENDOR_CERTIFICATE, 0)));
+    // parsed the first time, reused the second time, and parsed again once expired
+    assertEquals(1, attestationCertificates.stats().hitCount());
+    assertEquals(2, attestationCertificates.stats().missCount());
+  }
+
+  @Test
+  public void testProcessRegistrationResponse_cachedCertificateNoLongerTrusted()
+      throws U2FException {
+    when(mockDataStore.takeSessionData(SESSION_ID)).thenReturn(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    final List<String> warnings = Lists.newArrayList();
+    Handler handler = new Handler() {
+      @Override
+      public void publish(LogRecord record) {
+        if (record.getLevel() == Level.WARNING) {
+          warnings.add(record.getMessage());
+        }
+      }
+
+      @Override
+      public void flush() {}
+
+      @Override
+      public void close() {}
+    };
+    Logger logger = Logger.getLogger(U2FServerReferenceImpl.class.getName());
+    logger.addHandler(handler);
+    try {
+      AttestationCertificateCache attestationCertificates = new AttestationCertificateCache();
+      u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator, mockDataStore, cryto,
+          TRUSTED_DOMAINS, new PublicKeyCache(cryto), MoreExecutors.sameThreadExecutor(),
+          attestationCertificates);
+      RegistrationResponse registrationResponse = new RegistrationResponse(
+          REGISTRATION_DATA_BASE64, BROWSER_DATA_ENROLL_BASE64, SESSION_ID);
+
+      u2fServer.processRegistrationResponse(registrationResponse, 0L);
+      assertTrue(warnings.isEmpty());
+
+      // the certificate is still cached, but no longer trusted
+      when(mockDataStore.getTrustedCertificates()).thenReturn(ImmutableSet.<X509Certificate>of());
+      u2fServer.processRegistrationResponse(registrationResponse, 0L);
+
+      assertEquals(1, attestationCertificates.stats().hitCount());
+      assertEquals(ImmutableList.of("attestion cert is not trusted"), warnings);
+    } finally {
+      logger.removeHandler(handler);
+    }
+  }
+
   @Test
   public void testProcessRegistrationResponse2() throws U2FException {
-	when(mockDataStore.getEnrollSessionData(SESSION_ID)).thenReturn(
+	when(mockDataStore.takeSessionData(SESSION_ID)).thenReturn(
 	     new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
     HashSet<X509Certificate> trustedCertificates = new HashSet<X509Certificate>();
     trustedCertificates.add(VENDOR_CERTIFICATE);
@@ -122,6 +235,24 @@ public class U2FServerReferenceImplTest extends TestVectors {
         eq(new SecurityKeyData(0L, KEY_HANDLE_2, USER_PUBLIC_KEY_2, TRUSTED_CERTIFICATE_2, 0)));
   }
 
+  @Test
+  public void testProcessRegistrationResponse_clientDataCheckedFirst() throws U2FException {
+    when(mockDataStore.takeSessionData(SESSION_ID)).thenReturn(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+    // a replayed sign client data together with registration data that doesn't even decode
+    RegistrationResponse registrationResponse = new RegistrationResponse(
+        Base64.encodeBase64URLSafeString(new byte[] {0x05}), BROWSER_DATA_SIGN_BASE64, SESSION_ID);
+
+    try {
+      u2fServer.processRegistrationResponse(registrationResponse, 0L);
+      fail("expected exception, but didn't get it");
+    } catch (VerificationException e) {
+      assertEquals(Stage.CLIENT_DATA, e.getStage());
+    }
+  }
+
   @Test
   public void testGetSignRequest() throws U2FException {
     u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
@@ -134,22 +265,256 @@ public class U2FServerReferenceImplTest extends TestVectors {
         KEY_HANDLE_BASE64, SESSION_ID), signRequest.get(0));
   }
 
+  @Test
+  public void testGetMultiKeySignRequest() throws U2FException {
+    when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME)).thenReturn(ImmutableList.of(
+        new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0),
+        new SecurityKeyData(0L, KEY_HANDLE_2, USER_PUBLIC_KEY_2, VENDOR_CERTIFICATE, 0)));
+    when(mockDataStore.storeSessionData(Matchers.<EnrollSessionData>any())).thenReturn(SESSION_ID);
+    when(mockChallengeGenerator.generateChallenge(ACCOUNT_NAME)).thenReturn(SERVER_CHALLENGE_SIGN);
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+
+    MultiKeySignRequest signRequest = u2fServer.getMultiKeySignRequest(ACCOUNT_NAME, APP_ID_SIGN);
+
+    assertEquals(new MultiKeySignRequest(SERVER_CHALLENGE_SIGN_BASE64, APP_ID_SIGN,
+        ImmutableList.of(new RegisteredKey("U2F_V2", KEY_HANDLE_BASE64),
+            new RegisteredKey("U2F_V2", Base64.encodeBase64URLSafeString(KEY_HANDLE_2))),
+        SESSION_ID), signRequest);
+    verify(mockChallengeGenerator, times(1)).generateChallenge(ACCOUNT_NAME);
+    verify(mockDataStore, times(1)).storeSessionData(Matchers.<EnrollSessionData>any());
+  }
+
   @Test
   public void testProcessSignResponse() throws U2FException {
-	when(mockDataStore.getSignSessionData(SESSION_ID)).thenReturn(
-	    new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX));
+	when(mockDataStore.takeSignSessionData(ImmutableSet.of(SESSION_ID))).thenReturn(
+	    signSessions(new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN,
+            USER_PUBLIC_KEY_SIGN_HEX)));
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+    SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+        SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, SESSION_ID, APP_ID_SIGN);
+
+    u2fServer.processSignResponse(signResponse);
+  }
+
+  @Test
+  public void testProcessSignResponse_replayed() throws U2FException {
+    when(mockDataStore.takeSignSessionData(ImmutableSet.of(SESSION_ID))).thenReturn(
+        signSessions(new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN,
+            USER_PUBLIC_KEY_SIGN_HEX)),
+        ImmutableMap.<String, SignSessionData>of());
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+    SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+        SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, SESSION_ID, APP_ID_SIGN);
+    u2fServer.processSignResponse(signResponse);
+
+    try {
+      u2fServer.processSignResponse(signResponse);
+      fail("expected U2FException");
+    } catch (VerificationException e) {
+      assertEquals(Stage.SESSION, e.getStage());
+    }
+    verify(mockDataStore, times(1)).compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE, 0,
+        COUNTER_VALUE);
+  }
+
+  @Test
+  public void testProcessSignResponse_enrollSessionId() throws U2FException {
+    MemoryDataStore dataStore = new MemoryDataStore(mockSessionIdGenerator);
+    dataStore.storeSessionData(
+        new EnrollSessionData(ACCOUNT_NAME, APP_ID_ENROLL, SERVER_CHALLENGE_ENROLL));
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        dataStore, cryto, TRUSTED_DOMAINS);
+    SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+        SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, SESSION_ID, APP_ID_SIGN);
+
+    try {
+      u2fServer.processSignResponse(signResponse);
+      fail("expected U2FException");
+    } catch (VerificationException e) {
+      assertEquals(Stage.SESSION, e.getStage());
+    }
+    // the pending registration can still be finished
+    assertNotNull(dataStore.getEnrollSessionData(SESSION_ID));
+  }
+
+  @Test
+  public void testProcessSignResponse_concurrentCounterUpdate() throws U2FException {
+    when(mockDataStore.takeSignSessionData(ImmutableSet.of(SESSION_ID))).thenReturn(
+        signSessions(new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN,
+            USER_PUBLIC_KEY_SIGN_HEX)));
+    // another response moved the counter on after the key was read, but not as far as this one
+    when(mockDataStore.compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE, 0, COUNTER_VALUE))
+        .thenReturn(false);
+    when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME, KEY_HANDLE)).thenReturn(
+        new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE,
+            COUNTER_VALUE - 1));
+    when(mockDataStore.compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE, COUNTER_VALUE - 1,
+        COUNTER_VALUE)).thenReturn(true);
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+    SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+        SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, SESSION_ID, APP_ID_SIGN);
+
+    u2fServer.processSignResponse(signResponse);
+
+    verify(mockDataStore).compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE, COUNTER_VALUE - 1,
+        COUNTER_VALUE);
+  }
+
+  @Test
+  public void testProcessSignResponse_counterRaced() throws U2FException {
+    when(mockDataStore.takeSignSessionData(ImmutableSet.of(SESSION_ID))).thenReturn(
+        signSessions(new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN,
+            USER_PUBLIC_KEY_SIGN_HEX)));
+    // another response with the same counter value got there first
+    when(mockDataStore.compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE, 0, COUNTER_VALUE))
+        .thenReturn(false);
+    when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME, KEY_HANDLE)).thenReturn(
+        new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE,
+            COUNTER_VALUE));
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+    SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+        SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, SESSION_ID, APP_ID_SIGN);
+
+    try {
+      u2fServer.processSignResponse(signResponse);
+      fail("expected U2FException");
+    } catch (VerificationException e) {
+      assertEquals(Stage.COUNTER, e.getStage());
+    }
+  }
+
+  @Test
+  public void testProcessSignResponse_keyHandleLookup() throws U2FException {
+    when(mockDataStore.takeSignSessionData(ImmutableSet.of(SESSION_ID))).thenReturn(
+        signSessions(new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN,
+            USER_PUBLIC_KEY_SIGN_HEX, KEY_HANDLE)));
+    when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME, KEY_HANDLE)).thenReturn(
+        new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0));
     u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
         mockDataStore, cryto, TRUSTED_DOMAINS);
     SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
         SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, SESSION_ID, APP_ID_SIGN);
 
     u2fServer.processSignResponse(signResponse);
+
+    verify(mockDataStore, never()).getSecurityKeyData(ACCOUNT_NAME);
+    verify(mockDataStore).compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE, 0,
+        COUNTER_VALUE);
+  }
+
+  @Test
+  public void testProcessSignResponse_multiKey() throws U2FException {
+    when(mockDataStore.takeSignSessionData(ImmutableSet.of(SESSION_ID))).thenReturn(
+        signSessions(new MultiKeySignSessionData(ACCOUNT_NAME, APP_ID_SIGN,
+            SERVER_CHALLENGE_SIGN, ImmutableList.of(KEY_HANDLE_2, KEY_HANDLE))));
+    when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME, KEY_HANDLE)).thenReturn(
+        new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0));
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+    SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+        SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, SESSION_ID, APP_ID_SIGN,
+        KEY_HANDLE_BASE64);
+
+    u2fServer.processSignResponse(signResponse);
+
+    verify(mockDataStore).compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE, 0,
+        COUNTER_VALUE);
+  }
+
+  @Test
+  public void testProcessSignResponse_multiKeyWrongKeyHandle() throws U2FException {
+    when(mockDataStore.takeSignSessionData(ImmutableSet.of(SESSION_ID))).thenReturn(
+        signSessions(new MultiKeySignSessionData(ACCOUNT_NAME, APP_ID_SIGN,
+            SERVER_CHALLENGE_SIGN, ImmutableList.of(KEY_HANDLE_2))));
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+    SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+        SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, SESSION_ID, APP_ID_SIGN,
+        KEY_HANDLE_BASE64);
+
+    try {
+      u2fServer.processSignResponse(signResponse);
+      fail("expected exception, but didn't get it");
+    } catch(U2FException e) {
+      assertTrue(e.getMessage().contains("not part of the sign request"));
+    }
+  }
+
+  @Test
+  public void testProcessSignResponse_replayedCounter() throws U2FException {
+    when(mockDataStore.takeSignSessionData(ImmutableSet.of(SESSION_ID))).thenReturn(
+        signSessions(new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN,
+            USER_PUBLIC_KEY_SIGN_HEX)));
+    when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME)).thenReturn(ImmutableList.of(
+        new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE,
+            COUNTER_VALUE)));
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+    SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+        SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, SESSION_ID, APP_ID_SIGN);
+
+    try {
+      u2fServer.processSignResponse(signResponse);
+      fail("expected exception, but didn't get it");
+    } catch (VerificationException e) {
+      assertEquals(Stage.COUNTER, e.getStage());
+    }
+  }
+
+  @Test
+  public void testProcessSignResponse_truncated() throws U2FException {
+    when(mockDataStore.takeSignSessionData(ImmutableSet.of(SESSION_ID))).thenReturn(
+        signSessions(new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN,
+            USER_PUBLIC_KEY_SIGN_HEX)));
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+
+    // cut short in the counter, and cut short right after it
+    for (byte[] rawSignData : ImmutableList.of(new byte[] {1, 0, 0, 0},
+        new byte[] {1, 0, 0, 0, 1})) {
+      SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+          Base64.encodeBase64URLSafeString(rawSignData), SERVER_CHALLENGE_SIGN_BASE64,
+          SESSION_ID, APP_ID_SIGN);
+      try {
+        u2fServer.processSignResponse(signResponse);
+        fail("expected exception, but didn't get it");
+      } catch (VerificationException e) {
+        assertEquals(Stage.SIGNATURE, e.getStage());
+      }
+    }
+  }
+
+  @Test
+  public void testProcessSignResponse_undecodablePublicKey() throws U2FException {
+    when(mockDataStore.takeSignSessionData(ImmutableSet.of(SESSION_ID))).thenReturn(
+        signSessions(new MultiKeySignSessionData(ACCOUNT_NAME, APP_ID_SIGN,
+            SERVER_CHALLENGE_SIGN, ImmutableList.of(KEY_HANDLE))));
+    when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME, KEY_HANDLE)).thenReturn(
+        new SecurityKeyData(0L, KEY_HANDLE, new byte[65], VENDOR_CERTIFICATE, 0));
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+    SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+        SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, SESSION_ID, APP_ID_SIGN,
+        KEY_HANDLE_BASE64);
+
+    try {
+      u2fServer.processSignResponse(signResponse);
+      fail("expected exception, but didn't get it");
+    } catch (VerificationException e) {
+      assertEquals(Stage.SIGNATURE, e.getStage());
+    }
   }
 
   @Test
   public void testProcessSignResponse_badOrigin() throws U2FException {
-    when(mockDataStore.getSignSessionData(SESSION_ID)).thenReturn(
-        new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX));
+    when(mockDataStore.takeSignSessionData(ImmutableSet.of(SESSION_ID))).thenReturn(
+        signSessions(new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN, SERVER_CHALLENGE_SIGN,
+            USER_PUBLIC_KEY_SIGN_HEX)));
     u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
         mockDataStore, cryto, ImmutableSet.of("some-other-domain.com"));
     SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
@@ -163,12 +528,43 @@ public class U2FServerReferenceImplTest extends TestVectors {
     }
   }
   
+  @Test
+  public void testProcessSignResponses() throws U2FException {
+    when(mockDataStore.takeSignSessionData(Matchers.<Collection<String>>any())).thenReturn(
+        ImmutableMap.of(SESSION_ID, new SignSessionData(ACCOUNT_NAME, APP_ID_SIGN,
+            SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_SIGN_HEX)));
+    when(mockDataStore.getSecurityKeyData(Matchers.<Collection<String>>any())).thenReturn(
+        ImmutableMap.<String, List<SecurityKeyData>>of(ACCOUNT_NAME, ImmutableList.of(
+            new SecurityKeyData(0L, KEY_HANDLE, USER_PUBLIC_KEY_SIGN_HEX, VENDOR_CERTIFICATE, 0))));
+    u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
+        mockDataStore, cryto, TRUSTED_DOMAINS);
+    SignResponse signResponse = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+        SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, SESSION_ID, APP_ID_SIGN);
+    SignResponse unknownSession = new SignResponse(BROWSER_DATA_SIGN_BASE64,
+        SIGN_RESPONSE_DATA_BASE64, SERVER_CHALLENGE_SIGN_BASE64, "unknown", APP_ID_SIGN);
+
+    List<SignResult> results = u2fServer.processSignResponses(
+        ImmutableList.of(signResponse, unknownSession, signResponse));
+
+    assertEquals(3, results.size());
+    assertTrue(results.get(0).isSuccess());
+    assertArrayEquals(KEY_HANDLE, results.get(0).getSecurityKeyData().getKeyHandle());
+    assertFalse(results.get(1).isSuccess());
+    assertTrue(results.get(1).getException().getMessage().contains("Unknown session_id"));
+    // the same assertion can't be replayed within a batch: its session has been used up
+    assertFalse(results.get(2).isSuccess());
+    assertTrue(results.get(2).getException().getMessage().contains("Unknown session_id"));
+    verify(mockDataStore).compareAndSetCounter(ACCOUNT_NAME, KEY_HANDLE, 0,
+        COUNTER_VALUE);
+  }
+
   // @Test
   // TODO: put test back in once we have signature sample on a correct browserdata json
   // (currently, this test uses an enrollment browserdata during a signature)
   public void testProcessSignResponse2() throws U2FException {
-	when(mockDataStore.getSignSessionData(SESSION_ID)).thenReturn(
-	    new SignSessionData(ACCOUNT_NAME, APP_ID_2, SERVER_CHALLENGE_SIGN, USER_PUBLIC_KEY_2));
+	when(mockDataStore.takeSignSessionData(ImmutableSet.of(SESSION_ID))).thenReturn(
+	    signSessions(new SignSessionData(ACCOUNT_NAME, APP_ID_2, SERVER_CHALLENGE_SIGN,
+	        USER_PUBLIC_KEY_2)));
     when(mockDataStore.getSecurityKeyData(ACCOUNT_NAME)).thenReturn(
         ImmutableList.of(new SecurityKeyData(0l, KEY_HANDLE_2, USER_PUBLIC_KEY_2, VENDOR_CERTIFICATE, 0)));
     u2fServer = new U2FServerReferenceImpl(mockChallengeGenerator,
@@ -178,4 +574,8 @@ public class U2FServerReferenceImplTest extends TestVectors {
 
     u2fServer.processSignResponse(signResponse);
   }
+
+  private static Map<String, SignSessionData> signSessions(SignSessionData sessionData) {
+    return ImmutableMap.of(SESSION_ID, sessionData);
+  }
 }